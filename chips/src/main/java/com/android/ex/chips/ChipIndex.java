@@ -0,0 +1,210 @@
+package com.android.ex.chips;
+
+import android.support.v4.util.LongSparseArray;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+
+import com.android.ex.chips.chip.DrawableRecipientChip;
+import com.android.ex.chips.util.LongIntHashMap;
+
+import java.util.ArrayList;
+
+
+/**
+ * Keeps the chips of a text ordered by position and by data id, so that lookups do not have to collect all spans of
+ * the text. It is attached to the text as a {@link SpanWatcher} and follows chips being added, moved and removed.
+ */
+class ChipIndex implements SpanWatcher, NoCopySpan {
+	private final ArrayList<DrawableRecipientChip> mChips = new ArrayList<>();
+	private final LongSparseArray<DrawableRecipientChip> mChipsById = new LongSparseArray<>();
+	private final LongIntHashMap mIdCounts = new LongIntHashMap();
+	private Spannable mText;
+	private DrawableRecipientChip[] mSorted;
+
+
+	/**
+	 * Starts indexing the chips of the text, and stops indexing the previous one.
+	 */
+	void attach(Spannable text) {
+		if(mText != null)
+			mText.removeSpan(this);
+		mText = text;
+		mSorted = null;
+		mChips.clear();
+		mChipsById.clear();
+		mIdCounts.clear();
+		if(text == null)
+			return;
+		for(final DrawableRecipientChip chip : text.getSpans(0, text.length(), DrawableRecipientChip.class))
+			add(chip, text.getSpanStart(chip));
+		text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+	}
+
+
+	int size() {
+		return mChips.size();
+	}
+
+
+	/**
+	 * Returns the chip at the index, chips are ordered by their position in the text.
+	 */
+	DrawableRecipientChip get(int index) {
+		return mChips.get(index);
+	}
+
+
+	/**
+	 * Returns the chip closest to the end of the text or null.
+	 */
+	DrawableRecipientChip getLast() {
+		return mChips.isEmpty() ? null : mChips.get(mChips.size() - 1);
+	}
+
+
+	/**
+	 * Returns the first chip added for the data id or null.
+	 */
+	DrawableRecipientChip getById(long dataId) {
+		return mChipsById.get(dataId);
+	}
+
+
+	/**
+	 * Returns the chip containing the offset, including its end, or null.
+	 */
+	DrawableRecipientChip findAt(int offset) {
+		final int index = indexEndingAtOrAfter(offset);
+		if(index < mChips.size()) {
+			final DrawableRecipientChip chip = mChips.get(index);
+			if(mText.getSpanStart(chip) <= offset)
+				return chip;
+		}
+		return null;
+	}
+
+
+	/**
+	 * Returns the index of the first chip ending at or after the offset, or {@link #size()} if there is none.
+	 */
+	int indexEndingAtOrAfter(int offset) {
+		int low = 0;
+		int high = mChips.size();
+		while(low < high) {
+			final int mid = (low + high) >>> 1;
+			if(mText.getSpanEnd(mChips.get(mid)) < offset)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		return low;
+	}
+
+
+	/**
+	 * Returns the chips ordered by position. The array is shared until the chips change and must not be modified.
+	 */
+	DrawableRecipientChip[] toArray() {
+		if(mSorted == null)
+			mSorted = mChips.toArray(new DrawableRecipientChip[mChips.size()]);
+		return mSorted;
+	}
+
+
+	@Override
+	public void onSpanAdded(Spannable text, Object what, int start, int end) {
+		if(text == mText && what instanceof DrawableRecipientChip)
+			add((DrawableRecipientChip) what, start);
+	}
+
+
+	@Override
+	public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+		if(text == mText && what instanceof DrawableRecipientChip)
+			remove((DrawableRecipientChip) what, start);
+	}
+
+
+	@Override
+	public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+		if(text != mText || !(what instanceof DrawableRecipientChip))
+			return;
+		final DrawableRecipientChip chip = (DrawableRecipientChip) what;
+		final int index = indexOf(chip, nstart);
+		// Edits of the text shift chips without reordering them, only a moved chip has to be placed again.
+		if(index != -1 && (index == 0 || text.getSpanStart(mChips.get(index - 1)) <= nstart)
+				&& (index == mChips.size() - 1 || text.getSpanStart(mChips.get(index + 1)) >= nstart))
+			return;
+		remove(chip, nstart);
+		add(chip, nstart);
+	}
+
+
+	private void add(DrawableRecipientChip chip, int start) {
+		int low = 0;
+		int high = mChips.size();
+		while(low < high) {
+			final int mid = (low + high) >>> 1;
+			if(mText.getSpanStart(mChips.get(mid)) <= start)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		mChips.add(low, chip);
+		mSorted = null;
+		final long dataId = chip.getDataId();
+		final int count = mIdCounts.get(dataId, 0);
+		mIdCounts.put(dataId, count + 1);
+		if(count == 0)
+			mChipsById.put(dataId, chip);
+	}
+
+
+	private void remove(DrawableRecipientChip chip, int start) {
+		final int index = indexOf(chip, start);
+		if(index == -1)
+			return;
+		mChips.remove(index);
+		mSorted = null;
+		final long dataId = chip.getDataId();
+		final int count = mIdCounts.get(dataId, 0) - 1;
+		if(count <= 0) {
+			mIdCounts.remove(dataId);
+			mChipsById.remove(dataId);
+		} else {
+			mIdCounts.put(dataId, count);
+			if(mChipsById.get(dataId) == chip)
+				for(final DrawableRecipientChip other : mChips)
+					if(other.getDataId() == dataId) {
+						mChipsById.put(dataId, other);
+						break;
+					}
+		}
+	}
+
+
+	/**
+	 * Finds the chip by the position it has, or had if it was removed, falling back to a scan if the text is in the
+	 * middle of an update.
+	 */
+	private int indexOf(DrawableRecipientChip chip, int start) {
+		int low = 0;
+		int high = mChips.size();
+		while(low < high) {
+			final int mid = (low + high) >>> 1;
+			final DrawableRecipientChip other = mChips.get(mid);
+			if(other == chip)
+				return mid;
+			if(mText.getSpanStart(other) < start)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		for(int i = Math.max(low - 1, 0); i < Math.min(low + 2, mChips.size()); i++)
+			if(mChips.get(i) == chip)
+				return i;
+		return mChips.indexOf(chip);
+	}
+}
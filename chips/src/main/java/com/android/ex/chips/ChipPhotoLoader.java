@@ -0,0 +1,81 @@
+package com.android.ex.chips;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import com.android.ex.chips.util.LongHashSet;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Requests the photos of entries without photo bytes, at most one request per data id at a time. Entries whose photo
+ * arrived are handed to the UI thread in batches, so that many arriving photos are applied together.
+ */
+class ChipPhotoLoader {
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final Listener mListener;
+	private final Object mLock = new Object();
+	private final LongHashSet mInFlight = new LongHashSet();
+	private List<IRecipientEntry> mLoaded = new ArrayList<>();
+	private boolean mApplyScheduled;
+
+
+	interface Listener {
+		/**
+		 * Called on the UI thread with the entries whose photo arrived since the previous call.
+		 */
+		void onPhotosLoaded(List<IRecipientEntry> entries);
+	}
+
+
+	private final Runnable mApply = new Runnable() {
+		@Override
+		public void run() {
+			final List<IRecipientEntry> loaded;
+			synchronized(mLock) {
+				mApplyScheduled = false;
+				loaded = mLoaded;
+				mLoaded = new ArrayList<>();
+			}
+			if(!loaded.isEmpty())
+				mListener.onPhotosLoaded(loaded);
+		}
+	};
+
+
+	ChipPhotoLoader(Listener listener) {
+		mListener = listener;
+	}
+
+
+	/**
+	 * Starts loading the photo bytes if the entry has none yet and no request for its data id is in flight.
+	 */
+	void request(final IRecipientEntry entry) {
+		if(entry.getPhotoBytes() != null)
+			return;
+		final long dataId = entry.getDataId();
+		synchronized(mLock) {
+			if(!mInFlight.add(dataId))
+				return;
+		}
+		entry.getPhotoBytesAsync(new OnPhotoLoadedListener() {
+			@Override
+			public void onPhotoLoaded(byte[] photoBytes) {
+				synchronized(mLock) {
+					mInFlight.remove(dataId);
+					if(photoBytes == null)
+						return;
+					mLoaded.add(entry);
+					if(mApplyScheduled)
+						return;
+					mApplyScheduled = true;
+				}
+				// The listener may be called on any thread, and a detached view would drop a runnable posted from it.
+				mHandler.post(mApply);
+			}
+		});
+	}
+}
@@ -0,0 +1,99 @@
+package com.android.ex.chips;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * Renders chips off the UI thread. Rendered tasks are handed back to the UI thread in batches, so that many chips
+ * added at once are swapped in together.
+ */
+class ChipRenderQueue<T extends ChipRenderQueue.Task> {
+	private static ExecutorService sExecutor;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final Listener<T> mListener;
+	private final Object mLock = new Object();
+	private List<T> mRendered = new ArrayList<>();
+	private boolean mApplyScheduled;
+
+
+	/**
+	 * Work done for a single chip on the render thread.
+	 */
+	interface Task {
+		void render();
+	}
+
+
+	interface Listener<T> {
+		/**
+		 * Called on the UI thread with the tasks rendered since the previous call, in the order they were rendered.
+		 */
+		void onRendered(List<T> tasks);
+	}
+
+
+	private final Runnable mApply = new Runnable() {
+		@Override
+		public void run() {
+			final List<T> rendered;
+			synchronized(mLock) {
+				mApplyScheduled = false;
+				rendered = mRendered;
+				mRendered = new ArrayList<>();
+			}
+			if(!rendered.isEmpty())
+				mListener.onRendered(rendered);
+		}
+	};
+
+
+	ChipRenderQueue(Listener<T> listener) {
+		mListener = listener;
+	}
+
+
+	private static synchronized Executor getExecutor() {
+		if(sExecutor == null) {
+			sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "ChipRenderer");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+
+	/**
+	 * Renders the task on the render thread and delivers it to the listener on the UI thread.
+	 */
+	void submit(final T task) {
+		getExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				task.render();
+				synchronized(mLock) {
+					mRendered.add(task);
+					if(mApplyScheduled)
+						return;
+					mApplyScheduled = true;
+				}
+				// Posted through the main looper, as a detached view would drop a runnable posted from this thread.
+				mHandler.post(mApply);
+			}
+		});
+	}
+}
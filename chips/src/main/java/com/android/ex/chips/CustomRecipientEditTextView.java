@@ -21,7 +21,6 @@ import android.content.Context;
 import android.content.res.Resources;
 import android.content.res.TypedArray;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Matrix;
 import android.graphics.Paint;
@@ -32,12 +31,16 @@ import android.graphics.drawable.Drawable;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.Parcelable;
 import android.support.annotation.NonNull;
+import android.support.v4.view.ViewCompat;
 import android.text.Editable;
 import android.text.InputType;
+import android.text.Layout;
 import android.text.Spannable;
 import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
 import android.text.Spanned;
 import android.text.TextPaint;
 import android.text.TextUtils;
@@ -71,15 +74,20 @@ import android.widget.MultiAutoCompleteTextView;
 import android.widget.ScrollView;
 import android.widget.TextView;
 
+import com.android.ex.chips.chip.AvatarCache;
+import com.android.ex.chips.chip.ChipBitmapCache;
+import com.android.ex.chips.chip.ChipPainter;
 import com.android.ex.chips.chip.ChipsUtil;
 import com.android.ex.chips.chip.DrawableRecipientChip;
+import com.android.ex.chips.chip.DrawnRecipientChip;
+import com.android.ex.chips.chip.IAvatarDiskCache;
+import com.android.ex.chips.chip.InvisibleRecipientChip;
 import com.android.ex.chips.chip.VisibleRecipientChip;
+import com.android.ex.chips.util.IntArrayList;
+import com.android.ex.chips.util.LongHashSet;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -121,6 +129,8 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	private int mAlternatesLayout;
 	//    private Bitmap mDefaultContactPhoto;
 	private ImageSpan mMoreChip;
+	private int mMoreCount;
+	private boolean mCollapsible;
 	private TextView mMoreItem;
 	private boolean mNoChips = false;
 	private ListPopupWindow mAddressPopup;
@@ -135,13 +145,54 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	private int mActionBarHeight;
 	private boolean mAttachedToWindow;
 	private IChipListener mChipListener;
-	private int mPreviousChipsCount = 0;
+	private boolean mScrollBottomPending;
+	private IRecipientResolver mRecipientResolver;
+	private volatile IAvatarDiskCache mAvatarDiskCache;
+	private final int[] mLocation = new int[2];
+	private final Runnable mScrollBottom = new Runnable() {
+		@Override
+		public void run() {
+			mScrollBottomPending = false;
+			if(mScrollView != null) {
+				getLocationOnScreen(mLocation);
+				final int height = getHeight();
+				final int currentPos = mLocation[1] + height;
+				// Desired position shows at least 1 line of chips below the action
+				// bar. We add excess padding to make sure this is always below other
+				// content.
+				final int desiredPos = (int) mChipHeight + mActionBarHeight + getExcessTopPadding();
+				if(currentPos > desiredPos)
+					mScrollView.scrollBy(0, currentPos - desiredPos);
+			}
+		}
+	};
 	/**
 	 * used to store initial touch Y coordinate, in order to identify scrolling
 	 */
 	//    private int mStartTouchY = -1;
 	//    private boolean mIsScrolling = false;
 	private ListView mListView;
+	private final RecipientFilterPipeline mFilterPipeline = new RecipientFilterPipeline();
+	private final ChipBitmapCache mChipBitmapCache = new ChipBitmapCache(ChipBitmapCache.getDefaultMaxBytes());
+	private boolean mUseDrawnChips;
+	private ChipPainter mChipPainter;
+	private boolean mRenderChipsAsync = true;
+	private ChipIndex mChipIndex;
+	private int mBatchDepth;
+	private boolean mDataChangedPending;
+	private final ChipRenderQueue<ChipRenderTask> mChipRenderQueue = new ChipRenderQueue<>(
+			new ChipRenderQueue.Listener<ChipRenderTask>() {
+				@Override
+				public void onRendered(List<ChipRenderTask> tasks) {
+					swapRenderedChips(tasks);
+				}
+			});
+	private final ChipPhotoLoader mPhotoLoader = new ChipPhotoLoader(new ChipPhotoLoader.Listener() {
+		@Override
+		public void onPhotosLoaded(List<IRecipientEntry> entries) {
+			applyLoadedPhotos(entries);
+		}
+	});
 
 
 	private static float getTextYOffset(final String text, final TextPaint paint, final int height) {
@@ -178,6 +229,15 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		setOnItemClickListener(null);
 		setOnFocusChangeListener(null);
 		setCustomSelectionActionModeCallback(this);
+		setEditableFactory(new Editable.Factory() {
+			@Override
+			public Editable newEditable(CharSequence source) {
+				final Editable editable = super.newEditable(source);
+				getChipIndex().attach(editable);
+				return editable;
+			}
+		});
+		getChipIndex().attach(getText());
 		mHandler = new Handler() {
 			@Override
 			public void handleMessage(final Message msg) {
@@ -191,6 +251,8 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		};
 		mTextWatcher = new RecipientTextWatcher();
 		mTokenizer = new CustomRecipientEditTextView.CustomCommaTokenizer();
+		// The tokenizer sees each edit before the recipient watcher looks up tokens and makes its own edits.
+		super.addTextChangedListener((TextWatcher) mTokenizer);
 		addTextChangedListener(mTextWatcher);
 		setOnEditorActionListener(this);
 	}
@@ -239,6 +301,9 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 			public void onFocusChange(View v, boolean hasFocus) {
 				if(!hasFocus) {
 					clearSelectedChip();
+					collapse();
+				} else {
+					expand();
 				}
 
 				if(listener != null) {
@@ -296,7 +361,11 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	public void onRestoreInstanceState(final Parcelable state) {
 		if(!TextUtils.isEmpty(getText()))
 			super.onRestoreInstanceState(null);
-		else super.onRestoreInstanceState(state);
+		else if(state instanceof SavedState) {
+			final SavedState savedState = (SavedState) state;
+			super.onRestoreInstanceState(savedState.getSuperState());
+			restoreRecipients(savedState.mDataIds, savedState.mTypedText);
+		} else super.onRestoreInstanceState(state);
 	}
 
 
@@ -304,7 +373,76 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	public Parcelable onSaveInstanceState() {
 		// If the user changes orientation while they are editing, just roll back the selection.
 		clearSelectedChip();
-		return super.onSaveInstanceState();
+		final Parcelable superState = super.onSaveInstanceState();
+		final ChipIndex chips = getChipIndex();
+		if(chips.size() == 0)
+			return superState;
+		// The text of the chips is not frozen, see getFreezesText, save the data ids and the typed text instead.
+		final long[] dataIds = new long[chips.size()];
+		for(int i = 0; i < dataIds.length; i++)
+			dataIds[i] = chips.get(i).getDataId();
+		final Editable text = getText();
+		int typedStart = getChipEnd(chips.getLast());
+		while(typedStart < text.length() && text.charAt(typedStart) == ' ')
+			typedStart++;
+		return new SavedState(superState, dataIds, text.subSequence(typedStart, text.length()).toString());
+	}
+
+
+	/**
+	 * The text is not frozen while there are chips, {@link #onSaveInstanceState()} saves their data ids instead. Before
+	 * Marshmallow the text view still freezes the text along with the selection, it is replaced on restore.
+	 */
+	@Override
+	public boolean getFreezesText() {
+		return getChipIndex().size() == 0 && super.getFreezesText();
+	}
+
+
+	/**
+	 * Sets the resolver of the data ids of a saved state to recipients. By default they are looked up among the objects
+	 * of the adapter.
+	 */
+	public void setRecipientResolver(final IRecipientResolver resolver) {
+		mRecipientResolver = resolver;
+	}
+
+
+	private IRecipientEntry resolveRecipient(final long dataId) {
+		if(mRecipientResolver != null)
+			return mRecipientResolver.resolve(dataId);
+		final SelectableArrayAdapter adapter = getAdapter();
+		return adapter != null ? adapter.getObjectById(dataId) : null;
+	}
+
+
+	/**
+	 * Recreates the chips of the data ids, in order, followed by the typed text, with a single edit.
+	 */
+	private void restoreRecipients(final long[] dataIds, final String typedText) {
+		final List<IRecipientEntry> entries = new ArrayList<>(dataIds.length);
+		final List<Long> restoredIds = new ArrayList<>(dataIds.length);
+		for(final long dataId : dataIds) {
+			final IRecipientEntry entry = resolveRecipient(dataId);
+			if(entry != null) {
+				entries.add(entry);
+				restoredIds.add(dataId);
+			}
+		}
+		final SpannableStringBuilder builder = new SpannableStringBuilder();
+		appendChips(builder, entries);
+		builder.append(typedText);
+		beginBatch();
+		try {
+			getText().replace(0, length(), builder);
+			setSelection(length());
+			if(!restoredIds.isEmpty() && getAdapter() != null)
+				getAdapter().setSelectedByIds(restoredIds, true);
+			dispatchDataChanged();
+		} finally {
+			endBatch();
+		}
+		collapse();
 	}
 
 
@@ -319,6 +457,9 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		super.onSizeChanged(width, height, oldw, oldh);
 		if(width != 0 && height != 0)
 			checkChipWidths();
+		if(width != oldw)
+			// Other chips fit on the visible lines now.
+			collapse();
 		// Try to find the scroll view parent, if it exists.
 		if(mScrollView == null && !mTriedGettingScrollView) {
 			ViewParent parent = getParent();
@@ -349,7 +490,11 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		if(tokenizer instanceof MultiAutoCompleteTextView.CommaTokenizer) {
 			throw new RuntimeException("Instead of using MultiAutoCompleteTextView.CommaTokenizer use CustomRecipientEditTextView.CustomCommaTokenizer");
 		} else {
+			if(mTokenizer instanceof TextWatcher)
+				super.removeTextChangedListener((TextWatcher) mTokenizer);
 			mTokenizer = tokenizer;
+			if(tokenizer instanceof TextWatcher)
+				super.addTextChangedListener((TextWatcher) tokenizer);
 		}
 		super.setTokenizer(mTokenizer);
 	}
@@ -437,8 +582,10 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 				//                }
 				final float x = event.getX();
 				final float y = event.getY();
-				final int offset = putOffsetInRange(x, y);
-				final DrawableRecipientChip currentChip = findChip(offset);
+				// Fall back to the forgiving offset search for touches between chips.
+				final DrawableRecipientChip hitChip = getChipAt(x, y);
+				final int offset = hitChip != null ? getChipStart(hitChip) : putOffsetInRange(x, y);
+				final DrawableRecipientChip currentChip = hitChip != null ? hitChip : findChip(offset);
 				if(currentChip != null) {
 					if(mSelectedChip != null && mSelectedChip != currentChip) {
 						clearSelectedChip();
@@ -591,33 +738,46 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 
 			@Override
 			public void selectAll(boolean selected) {
-				Collection<Long> dataIds = getDataIds();
-				if(selected) {
-					for(int i = 0; i < getAdapter().getSelectedObjects().size(); i++) {
-						if(!dataIds.contains(getAdapter().getItem(i).getDataId()))
-							submitItemAtPosition(i, false);
-					}
-				} else {
-					if(getAdapter().getCount() == getAdapter().getObjects().size()) {
-						removeAllRecipients(false, true);
-					} else {
-						for(int i = 0; i < getAdapter().getCount(); i++) {
-							removeChipById(getAdapter().getItem(i).getDataId(), false);
+				final SelectableArrayAdapter adapter = getAdapter();
+				beginBatch();
+				try {
+					if(selected) {
+						final LongHashSet dataIds = new LongHashSet();
+						final ChipIndex chips = getChipIndex();
+						for(int i = 0; i < chips.size(); i++)
+							dataIds.add(chips.get(i).getDataId());
+						final List<IRecipientEntry> toAdd = new ArrayList<IRecipientEntry>();
+						for(int i = 0, count = adapter.getCount(); i < count; i++) {
+							final IRecipientEntry entry = adapter.getItem(i);
+							if(adapter.isSelectedById(entry.getDataId()) && dataIds.add(entry.getDataId()))
+								toAdd.add(entry);
+						}
+						if(!toAdd.isEmpty()) {
+							clearComposingText();
+							clearSelectedChip();
+							// Like submitting an item, the chips replace the text being typed.
+							replaceChips(new LongHashSet(), toAdd, true);
 						}
+					} else if(adapter.getCount() == adapter.getObjects().size()) {
+						removeAllRecipients(false);
+					} else {
+						final List<Long> toRemove = new ArrayList<Long>();
+						for(int i = 0, count = adapter.getCount(); i < count; i++)
+							toRemove.add(adapter.getItem(i).getDataId());
+						applyRecipientDiff(null, toRemove);
 					}
+					dispatchDataChanged();
+				} finally {
+					endBatch();
 				}
-
-				if(mChipListener != null) {
-					mChipListener.onDataChanged();
-				}
+				collapse();
+				scrollBottomIntoView();
 			}
 
 
 			@Override
 			public void dataChanged() {
-				if(mChipListener != null) {
-					mChipListener.onDataChanged();
-				}
+				dispatchDataChanged();
 			}
 		});
 	}
@@ -629,6 +789,71 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
+	/**
+	 * Returns the pipeline filtering the adapter while typing, e.g. to read how many queries were executed and how
+	 * many were dropped.
+	 */
+	public RecipientFilterPipeline getFilterPipeline() {
+		return mFilterPipeline;
+	}
+
+
+	/**
+	 * Set how long to wait after a keystroke before filtering the adapter, in milliseconds.
+	 */
+	public void setFilterDebounceDelay(final long delay) {
+		mFilterPipeline.setDebounceDelay(delay);
+	}
+
+
+	/**
+	 * Draw chips straight onto the canvas instead of rendering a bitmap for each of them, which keeps the memory used
+	 * by many chips low. Applies to chips created afterwards.
+	 */
+	public void setUseDrawnChips(final boolean useDrawnChips) {
+		mUseDrawnChips = useDrawnChips;
+	}
+
+
+	/**
+	 * Render added chips on a background thread, showing a chip without photo in the meantime. Enabled by default.
+	 */
+	public void setRenderChipsAsync(final boolean renderChipsAsync) {
+		mRenderChipsAsync = renderChipsAsync;
+	}
+
+
+	/**
+	 * Collapse the chips past the max chip lines into a "+N" chip while the view is not focused, so that layout and
+	 * drawing do not depend on the number of recipients. The chips are expanded again when the view gains focus.
+	 */
+	public void setCollapsible(final boolean collapsible) {
+		mCollapsible = collapsible;
+		if(collapsible)
+			collapse();
+		else
+			expand();
+	}
+
+
+	/**
+	 * Sets a disk cache for avatars, e.g. a {@link com.android.ex.chips.chip.DiskAvatarCache}, so that chips rendered before the photo bytes of
+	 * their entry are loaded show the avatar of a previous session. It is used by chips rendered on the render thread,
+	 * see {@link #setRenderChipsAsync(boolean)}.
+	 */
+	public void setAvatarDiskCache(final IAvatarDiskCache diskCache) {
+		mAvatarDiskCache = diskCache;
+	}
+
+
+	/**
+	 * Returns the cache of rendered chips, e.g. to read its hit and eviction counts.
+	 */
+	public ChipBitmapCache getChipBitmapCache() {
+		return mChipBitmapCache;
+	}
+
+
 	/**
 	 * adds a recipient to the view. note that it should be called when the view has determined its size
 	 */
@@ -638,14 +863,11 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		// clearComposingText();
 		final Editable editable = getText();
 		// QwertyKeyListener.markAsReplaced(editable, start, end, "");
-		final CharSequence chip = createChip(entry, false);
-		if(!alsoNotifyAboutDataChanges)
-			++mPreviousChipsCount;
-		// expand();
+		final CharSequence chip = mMoreChip != null ? createHiddenChip(entry) : createChip(entry, false, mRenderChipsAsync);
 		if(chip != null)
 			editable.append(chip);
 		sanitizeBetween();
-		// shrink();
+		collapse();
 	}
 
 
@@ -656,13 +878,68 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		if(entry == null)
 			return;
 		removeChipById(entry.getDataId(), alsoNotifyAboutDataChanges);
+		collapse();
 	}
 
 
+	/**
+	 * @deprecated alsoNotifyAboutDataChanges has no effect, use {@link #removeAllRecipients(boolean)}.
+	 */
+	@Deprecated
 	public void removeAllRecipients(boolean callbackEnabled, final boolean alsoNotifyAboutDataChanges) {
-		final DrawableRecipientChip[] chips = getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
-		for(final DrawableRecipientChip chip : chips)
-			removeChip(chip, alsoNotifyAboutDataChanges, callbackEnabled);
+		removeAllRecipients(callbackEnabled);
+	}
+
+
+	/**
+	 * Removes all chips and their trailing spaces with a single edit of the text, text being typed is kept.
+	 *
+	 * @param callbackEnabled Whether to notify the chip listener if any chip was removed.
+	 */
+	public void removeAllRecipients(boolean callbackEnabled) {
+		clearSelectedChip();
+		beginBatch();
+		try {
+			final List<Long> removedIds = replaceChips(null, null, false);
+			if(removedIds == null)
+				return;
+			if(getAdapter() != null)
+				getAdapter().setSelectedByIds(removedIds, false);
+			if(callbackEnabled)
+				dispatchDataChanged();
+		} finally {
+			endBatch();
+		}
+		collapse();
+	}
+
+
+	/**
+	 * Removes the chips of the data ids and adds chips for the entries with a single edit of the text. Added chips go
+	 * after the existing ones, before any text being typed. The chip listener is notified once if anything changed.
+	 *
+	 * @param add       Entries to add chips for, may be null.
+	 * @param removeIds Data ids of the chips to remove, may be null.
+	 */
+	public void applyRecipientDiff(final Collection<? extends IRecipientEntry> add, final Collection<Long> removeIds) {
+		final LongHashSet idsToRemove = new LongHashSet();
+		if(removeIds != null)
+			for(final Long dataId : removeIds)
+				idsToRemove.add(dataId);
+		clearSelectedChip();
+		beginBatch();
+		try {
+			final List<Long> removedIds = replaceChips(idsToRemove, add, false);
+			if(removedIds == null)
+				return;
+			if(!removedIds.isEmpty() && getAdapter() != null)
+				getAdapter().setSelectedByIds(removedIds, false);
+			dispatchDataChanged();
+		} finally {
+			endBatch();
+		}
+		collapse();
+		scrollBottomIntoView();
 	}
 
 
@@ -671,9 +948,9 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	 */
 	public Set<IRecipientEntry> getChosenRecipients() {
 		final Set<IRecipientEntry> result = new HashSet<IRecipientEntry>();
-		final DrawableRecipientChip[] chips = getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
-		for(final DrawableRecipientChip chip : chips) {
-			final IRecipientEntry recipientEntry = chip.getEntry();
+		final ChipIndex chips = getChipIndex();
+		for(int i = 0; i < chips.size(); i++) {
+			final IRecipientEntry recipientEntry = chips.get(i).getEntry();
 			result.add(recipientEntry);
 		}
 		return result;
@@ -683,29 +960,37 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	/**
 	 * sets exact recipients to be chosen. <br/>
 	 * each previous chip will stay only if it really matches one of the recipients. <br/>
-	 * note that this function will not notify about data changes
+	 * the chip listener is notified once if anything changed
 	 */
 	public void setChosenRecipients(final Set<IRecipientEntry> recipientsToSet) {
-		final Set<IRecipientEntry> currentRecipients = getChosenRecipients();
-		final List<IRecipientEntry> toRemove = new ArrayList<>(), toAdd = new ArrayList<IRecipientEntry>();
-		// check which to remove - items that exist on the editText but not on the list
-		for(final IRecipientEntry recipientEntry : currentRecipients)
-			if(!recipientsToSet.contains(recipientEntry))
-				toRemove.add(recipientEntry);
+		// Compare data ids, entries do not necessarily implement equals and hashCode.
+		final LongHashSet idsToSet = new LongHashSet();
+		final List<IRecipientEntry> toAdd = new ArrayList<IRecipientEntry>();
+		final LongHashSet currentIds = new LongHashSet();
+		final ChipIndex chips = getChipIndex();
+		for(int i = 0; i < chips.size(); i++)
+			currentIds.add(chips.get(i).getDataId());
 		// check which to add - items that exist on the list, but not on the editText
 		for(final IRecipientEntry recipientEntry : recipientsToSet)
-			if(!currentRecipients.contains(recipientEntry))
+			if(idsToSet.add(recipientEntry.getDataId()) && !currentIds.contains(recipientEntry.getDataId()))
 				toAdd.add(recipientEntry);
-		for(final IRecipientEntry recipientEntry : toRemove)
-			removeRecipient(recipientEntry, true);
-		for(final IRecipientEntry recipientEntry : toAdd)
-			addRecipient(recipientEntry, true);
+		// check which to remove - items that exist on the editText but not on the list
+		final List<Long> toRemove = new ArrayList<>();
+		for(int i = 0; i < chips.size(); i++) {
+			final long dataId = chips.get(i).getDataId();
+			if(!idsToSet.contains(dataId) && currentIds.remove(dataId))
+				toRemove.add(dataId);
+		}
+		applyRecipientDiff(toAdd, toRemove);
 	}
 
 
 	@Override
 	protected void onDetachedFromWindow() {
 		mAttachedToWindow = false;
+		mFilterPipeline.cancel();
+		removeCallbacks(mScrollBottom);
+		mScrollBottomPending = false;
 		super.onDetachedFromWindow();
 	}
 
@@ -717,6 +1002,9 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
+	/**
+	 * Draws the photo of a chip. May be called on the render thread, see {@link #setRenderChipsAsync}.
+	 */
 	protected void drawIconOnCanvas(Bitmap icon, Canvas canvas, Paint paint, RectF src, RectF dst) {
 		Matrix matrix = new Matrix();
 		matrix.setRectToRect(src, dst, Matrix.ScaleToFit.FILL);
@@ -751,16 +1039,23 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 				return;
 		} else if(isCompletedToken)
 			return;
+		else mFilterPipeline.cancel();
 		super.performFiltering(text, keyCode);
 	}
 
 
+	/**
+	 * Filters the token through {@link RecipientFilterPipeline}, so that stale queries are dropped instead of scanning
+	 * the whole adapter on every keystroke.
+	 */
+	@Override
+	protected void performFiltering(final CharSequence text, final int start, final int end, final int keyCode) {
+		mFilterPipeline.filter(getAdapter(), text.subSequence(start, end), this);
+	}
+
+
 	/* package */DrawableRecipientChip getLastChip() {
-		DrawableRecipientChip last = null;
-		final DrawableRecipientChip[] chips = getSortedRecipients();
-		if(chips != null && chips.length > 0)
-			last = chips[chips.length - 1];
-		return last;
+		return getChipIndex().getLast();
 	}
 
 
@@ -776,24 +1071,28 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	// Visible for testing.
   /* package */void setChipBackground(final Drawable chipBackground) {
 		mChipBackground = chipBackground;
+		mChipBitmapCache.clear();
+		mChipPainter = null;
 	}
 
 
 	// Visible for testing.
   /* package */void setChipHeight(final int height) {
 		mChipHeight = height;
+		mChipBitmapCache.clear();
+		mChipPainter = null;
 	}
 
 
 	// Visible for testing.
   /* package */void sanitizeBetween() {
 		// Find the last chip.
-		final DrawableRecipientChip[] recips = getSortedRecipients();
-		if(recips != null && recips.length > 0) {
-			final DrawableRecipientChip last = recips[recips.length - 1];
+		final ChipIndex recips = getChipIndex();
+		if(recips.size() > 0) {
+			final DrawableRecipientChip last = recips.get(recips.size() - 1);
 			DrawableRecipientChip beforeLast = null;
-			if(recips.length > 1)
-				beforeLast = recips[recips.length - 2];
+			if(recips.size() > 1)
+				beforeLast = recips.get(recips.size() - 2);
 			int startLooking = 0;
 			final int end = getSpannable().getSpanStart(last);
 			if(beforeLast != null) {
@@ -824,12 +1123,14 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		// Check to see if this is a completed token before filtering.
 		final int end = text.length();
 		final int start = mTokenizer.findTokenStart(text, end);
-		final String token = text.toString().substring(start, end).trim();
-		if(!TextUtils.isEmpty(token)) {
-			final char atEnd = token.charAt(token.length() - 1);
-			return atEnd == COMMIT_CHAR_COMMA || atEnd == COMMIT_CHAR_SEMICOLON;
-		}
-		return false;
+		// Look at the last character of the trimmed token without copying the text.
+		int last = end - 1;
+		while(last >= start && text.charAt(last) <= ' ')
+			last--;
+		if(last < start)
+			return false;
+		final char atEnd = text.charAt(last);
+		return atEnd == COMMIT_CHAR_COMMA || atEnd == COMMIT_CHAR_SEMICOLON;
 	}
 
 
@@ -883,29 +1184,19 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
+	/**
+	 * Returns the chips ordered by position. The array is cached until the chips change, so it must not be modified.
+	 */
 	// Visible for testing.
   /* package */DrawableRecipientChip[] getSortedRecipients() {
-		final DrawableRecipientChip[] recips = getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
-		final ArrayList<DrawableRecipientChip> recipientsList = new ArrayList<DrawableRecipientChip>(Arrays.asList(recips));
-		final Spannable spannable = getSpannable();
-		Collections.sort(recipientsList, new Comparator<DrawableRecipientChip>() {
-			@Override
-			public int compare(final DrawableRecipientChip first, final DrawableRecipientChip second) {
-				final int firstStart = spannable.getSpanStart(first);
-				final int secondStart = spannable.getSpanStart(second);
-				if(firstStart < secondStart)
-					return -1;
-				else if(firstStart > secondStart)
-					return 1;
-				else return 0;
-			}
-		});
-		return recipientsList.toArray(new DrawableRecipientChip[recipientsList.size()]);
+		return getChipIndex().toArray();
 	}
 
 
 	// Visible for testing.
   /* package */int countTokens(final Editable text) {
+		if(mTokenizer instanceof CustomCommaTokenizer)
+			return ((CustomCommaTokenizer) mTokenizer).countTokens(text);
 		int tokenCount = 0;
 		int start = 0;
 		while(start < text.length()) {
@@ -926,8 +1217,6 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	 */
 	// Visible for testing.
   /* package */void removeChip(final DrawableRecipientChip chip, final boolean alsoNotifyAboutDataChanges, boolean callbackEnabled) {
-		if(!alsoNotifyAboutDataChanges)
-			--mPreviousChipsCount;
 		deleselectAdapterItem(chip);
 		final Spannable spannable = getSpannable();
 		final int spanStart = spannable.getSpanStart(chip);
@@ -946,9 +1235,8 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 			text.delete(spanStart, toDelete);
 		if(wasSelected)
 			clearSelectedChip();
-		if(mChipListener != null && callbackEnabled) {
-			mChipListener.onDataChanged();
-		}
+		if(callbackEnabled)
+			dispatchDataChanged();
 	}
 
 
@@ -967,7 +1255,7 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		final int end = getChipEnd(chip);
 		getSpannable().removeSpan(chip);
 		final Editable editable = getText();
-		final CharSequence chipText = createChip(entry, false);
+		final CharSequence chipText = createChip(entry, false, false);
 		if(chipText != null)
 			if(start == -1 || end == -1) {
 				Log.e(TAG, "The chip to replace does not exist but should.");
@@ -989,12 +1277,13 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
   /* package */int movePastTerminators(int tokenEnd) {
 		if(tokenEnd >= length())
 			return tokenEnd;
-		final char atEnd = getText().toString().charAt(tokenEnd);
+		final Editable text = getText();
+		final char atEnd = text.charAt(tokenEnd);
 		if(atEnd == COMMIT_CHAR_COMMA || atEnd == COMMIT_CHAR_SEMICOLON)
 			tokenEnd++;
 		// This token had not only an end token character, but also a space
 		// separating it from the next token.
-		if(tokenEnd < length() && getText().toString().charAt(tokenEnd) == ' ')
+		if(tokenEnd < length() && text.charAt(tokenEnd) == ' ')
 			tokenEnd++;
 		return tokenEnd;
 	}
@@ -1007,18 +1296,13 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
+	/**
+	 * Scrolls the bottom of the view into view on the next frame. Requests made until then are coalesced.
+	 */
 	private void scrollBottomIntoView() {
-		if(mScrollView != null) {
-			final int[] location = new int[2];
-			getLocationOnScreen(location);
-			final int height = getHeight();
-			final int currentPos = location[1] + height;
-			// Desired position shows at least 1 line of chips below the action
-			// bar. We add excess padding to make sure this is always below other
-			// content.
-			final int desiredPos = (int) mChipHeight + mActionBarHeight + getExcessTopPadding();
-			if(currentPos > desiredPos)
-				mScrollView.scrollBy(0, currentPos - desiredPos);
+		if(mScrollView != null && !mScrollBottomPending) {
+			mScrollBottomPending = true;
+			ViewCompat.postOnAnimation(this, mScrollBottom);
 		}
 	}
 
@@ -1036,38 +1320,95 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		paint.setColor(sSelectedTextColor);
 		Bitmap photo;
 		photo = getContactBitmap(contact);
-		return createChipBitmap(contact, paint, photo, mChipBackgroundPressed);
+		return createChipBitmap(contact, paint, photo, mChipBackgroundPressed, calculateAvailableWidth(),
+				getChipBitmapHeight());
 	}
 
 
+	/**
+	 * Returns the photo of the entry clipped to the chip height, or its default photo if it has none yet.
+	 */
 	private Bitmap getContactBitmap(final IRecipientEntry entry) {
-		byte[] photoBytes = entry.getPhotoBytes();
-		if(photoBytes != null) {
-			return BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length);
-		} else {
-			entry.getPhotoBytesAsync(new OnPhotoLoadedListener() {
-				@Override
-				public void onPhotoLoaded(byte[] photoBytes) {
-					if(photoBytes != null)
-						replaceChip(findChip(entry), entry);
-				}
-			});
-		}
+		requestContactPhoto(entry);
+		// The disk cache is only read on the render thread.
+		return loadContactBitmap(entry, getChipBitmapHeight(), null);
+	}
+
 
-		return BitmapFactory.decodeResource(getResources(), entry.getDefaultPhotoResourceId());
+	/**
+	 * Same as {@link #getContactBitmap} without requesting missing photo bytes, so it may be called from any thread.
+	 */
+	private Bitmap loadContactBitmap(final IRecipientEntry entry, final int size, final IAvatarDiskCache diskCache) {
+		final Bitmap photo = ChipsUtil.getClippedPhoto(entry, size, diskCache);
+		if(photo != null)
+			return photo;
+		return ChipsUtil.getClippedDefaultPhoto(getResources(), entry.getDefaultPhotoResourceId(), size);
 	}
 
 
-	private DrawableRecipientChip findChip(IRecipientEntry entry) {
-		DrawableRecipientChip[] allchips = getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
-		if(allchips != null) {
-			for(int i = 0; i < allchips.length; i++) {
-				if(allchips[i].getDataId() == entry.getDataId()) {
-					return allchips[i];
-				}
+	/**
+	 * Starts loading the photo bytes if the entry has none yet. Chips of the entry are rendered again once they are
+	 * loaded.
+	 */
+	private void requestContactPhoto(final IRecipientEntry entry) {
+		mPhotoLoader.request(entry);
+	}
+
+
+	/**
+	 * Renders the chips of the entries again with their loaded photos. The chip spans are swapped in a copy of the text
+	 * which replaces it once, so a batch of arriving photos costs a single layout.
+	 */
+	private void applyLoadedPhotos(final List<IRecipientEntry> entries) {
+		final LongHashSet dataIds = new LongHashSet(entries.size());
+		for(final IRecipientEntry entry : entries)
+			dataIds.add(entry.getDataId());
+		// Chips of these entries were rendered with the default photo.
+		AvatarCache.getInstance().removeAll(dataIds);
+		mChipBitmapCache.removeAll(dataIds);
+		SpannableStringBuilder swapped = null;
+		for(final IRecipientEntry entry : entries) {
+			final DrawableRecipientChip chip = findChip(entry);
+			// Hidden chips are rendered once they are expanded, the selected chip once it is unselected.
+			if(chip == null || chip instanceof InvisibleRecipientChip || chip == mSelectedChip)
+				continue;
+			if(mRenderChipsAsync && canRenderAsync(entry)) {
+				// The current chip stays until the render thread is done.
+				submitChipRender(entry, chip);
+				continue;
+			}
+			try {
+				final DrawableRecipientChip newChip = constructChipSpan(entry, false, false);
+				if(swapped == null)
+					swapped = new SpannableStringBuilder(getText());
+				swapChip(swapped, chip, newChip);
+			} catch(final NullPointerException e) {
+				Log.e(TAG, e.getMessage(), e);
 			}
 		}
-		return null;
+		if(swapped != null)
+			replaceSpans(swapped);
+	}
+
+
+	/**
+	 * Puts the new chip span in place of the chip in the text, usually a copy which replaces the text of the view once
+	 * all chips are swapped.
+	 */
+	private void swapChip(final Spannable spannable, final DrawableRecipientChip chip,
+						  final DrawableRecipientChip newChip) {
+		final int start = spannable.getSpanStart(chip);
+		final int end = spannable.getSpanEnd(chip);
+		if(start == -1 || end == -1)
+			return;
+		newChip.setOriginalText(chip.getOriginalText().toString());
+		spannable.removeSpan(chip);
+		spannable.setSpan(newChip, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+	}
+
+
+	private DrawableRecipientChip findChip(IRecipientEntry entry) {
+		return getChipIndex().getById(entry.getDataId());
 	}
 
 
@@ -1076,12 +1417,16 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		Drawable background = getChipBackground(contact);
 		Bitmap photo = getContactBitmap(contact);
 		paint.setColor(getContext().getResources().getColor(android.R.color.black));
-		return createChipBitmap(contact, paint, photo, background);
+		return createChipBitmap(contact, paint, photo, background, calculateAvailableWidth(), getChipBitmapHeight());
 	}
 
 
+	/**
+	 * Renders the chip bitmap. Only uses its arguments and immutable state of the view, so that chips can be rendered
+	 * on the render thread too.
+	 */
 	private Bitmap createChipBitmap(IRecipientEntry contact, TextPaint paint, Bitmap icon,
-									Drawable background) {
+									Drawable background, float availableWidth, int height) {
 		if(background == null) {
 			Log.w(TAG, "Unable to draw a background for the chips as it was never set");
 			return Bitmap.createBitmap(
@@ -1094,14 +1439,13 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		// Ellipsize the text so that it takes AT MOST the entire width of the
 		// autocomplete text entry area. Make sure to leave space for padding
 		// on the sides.
-		int height = (int) mChipHeight + getResources().getDimensionPixelSize(R.dimen.extra_chip_height);
 		// Since the icon is a square, it's width is equal to the maximum height it can be inside
 		// the chip.
 		int iconWidth = height - backgroundPadding.top - backgroundPadding.bottom;
 		float[] widths = new float[1];
 		paint.getTextWidths(" ", widths);
 		CharSequence ellipsizedText = ellipsizeText(createChipDisplayText(contact), paint,
-				calculateAvailableWidth() - iconWidth - widths[0] - backgroundPadding.left
+				availableWidth - iconWidth - widths[0] - backgroundPadding.left
 						- backgroundPadding.right);
 		int textWidth = (int) paint.measureText(ellipsizedText, 0, ellipsizedText.length());
 
@@ -1124,8 +1468,7 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		canvas.drawText(ellipsizedText, 0, ellipsizedText.length(),
 				textX, getTextYOffset(ellipsizedText.toString(), paint, height), paint);
 		if(icon != null) {
-			// Draw the icon
-			icon = ChipsUtil.getClip(icon);
+			// Draw the icon, it is already clipped
 			int iconX = backgroundPadding.left;
 			RectF src = new RectF(0, 0, icon.getWidth(), icon.getHeight());
 			RectF dst = new RectF(0, 0, height, height);
@@ -1138,14 +1481,23 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	private DrawableRecipientChip constructChipSpan(final IRecipientEntry contact, final boolean pressed, final boolean leaveIconSpace) throws NullPointerException {
 		if(mChipBackground == null)
 			throw new NullPointerException("Unable to render any chips as setChipDimensions was not called.");
+		if(mUseDrawnChips)
+			return constructDrawnChipSpan(contact, pressed);
 		final TextPaint paint = getPaint();
 		final float defaultSize = paint.getTextSize();
 		final int defaultColor = paint.getColor();
-		Bitmap tmpBitmap;
-		if(pressed) {
-			tmpBitmap = createSelectedChip(contact, paint);
-		} else {
-			tmpBitmap = createUnselectedChip(contact, paint, leaveIconSpace);
+		// Selecting, unselecting and re-laying out chips renders the same bitmaps again, so reuse them.
+		final int availableWidth = (int) calculateAvailableWidth();
+		final String displayText = createChipDisplayText(contact);
+		Bitmap tmpBitmap = mChipBitmapCache.get(contact.getDataId(), displayText, pressed, contact.isValid(),
+				availableWidth);
+		if(tmpBitmap == null) {
+			if(pressed) {
+				tmpBitmap = createSelectedChip(contact, paint);
+			} else {
+				tmpBitmap = createUnselectedChip(contact, paint, leaveIconSpace);
+			}
+			mChipBitmapCache.put(contact.getDataId(), displayText, pressed, contact.isValid(), availableWidth, tmpBitmap);
 		}
 		// Pass the full text, un-ellipsized, to the chip.
 		final Drawable result = new BitmapDrawable(getResources(), tmpBitmap);
@@ -1158,6 +1510,106 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
+	private DrawableRecipientChip constructDrawnChipSpan(final IRecipientEntry contact, final boolean pressed) {
+		return getChipPainter().createChip(contact, createChipDisplayText(contact), getContactBitmap(contact), pressed,
+				calculateAvailableWidth());
+	}
+
+
+	/**
+	 * Returns an unpressed chip for the entry. Unless the chip can be created from the caches, this is a placeholder
+	 * without photo which is swapped for the rendered chip once the render thread is done with it.
+	 */
+	private DrawableRecipientChip constructChipSpanAsync(final IRecipientEntry contact) throws NullPointerException {
+		if(mChipBackground == null)
+			throw new NullPointerException("Unable to render any chips as setChipDimensions was not called.");
+		final int height = getChipBitmapHeight();
+		final float availableWidth = calculateAvailableWidth();
+		final boolean cached = isPhotoCached(contact, height) && (mUseDrawnChips
+				|| mChipBitmapCache.get(contact.getDataId(), createChipDisplayText(contact), false, contact.isValid(),
+				(int) availableWidth) != null);
+		if(cached || !canRenderAsync(contact))
+			return constructChipSpan(contact, false, false);
+
+		requestContactPhoto(contact);
+		final DrawnRecipientChip placeholder = getChipPainter().createChip(contact, createChipDisplayText(contact), null,
+				false, availableWidth);
+		submitChipRender(contact, placeholder);
+		return placeholder;
+	}
+
+
+	private boolean canRenderAsync(final IRecipientEntry contact) {
+		if(mUseDrawnChips)
+			return true;
+		final Drawable background = getChipBackground(contact);
+		return background != null && background.getConstantState() != null;
+	}
+
+
+	/**
+	 * Renders the chip of the entry on the render thread, it replaces the placeholder once it is done.
+	 */
+	private void submitChipRender(final IRecipientEntry contact, final DrawableRecipientChip placeholder) {
+		final TextPaint paint = new TextPaint(getPaint());
+		// The render thread draws its own copy of the background, as drawables are not thread safe.
+		final Drawable backgroundCopy = mUseDrawnChips ? null
+				: getChipBackground(contact).getConstantState().newDrawable(getResources()).mutate();
+		mChipRenderQueue.submit(new ChipRenderTask(contact, placeholder, getChipPainter(), paint, backgroundCopy,
+				calculateAvailableWidth(), getChipBitmapHeight()));
+	}
+
+
+	private boolean isPhotoCached(final IRecipientEntry contact, final int size) {
+		final AvatarCache cache = AvatarCache.getInstance();
+		// Without photo bytes the avatar may still be in the disk cache, which is read on the render thread.
+		if(contact.getPhotoBytes() != null || mAvatarDiskCache != null)
+			return cache.get(contact.getDataId(), size) != null;
+		return cache.getDefault(contact.getDefaultPhotoResourceId(), size) != null;
+	}
+
+
+	/**
+	 * Replaces the placeholders of the rendered tasks which are still in the text with the rendered chips. The chips are
+	 * swapped in a copy of the text which replaces it once, so a batch costs a single layout.
+	 */
+	private void swapRenderedChips(final List<ChipRenderTask> tasks) {
+		final Spannable spannable = getSpannable();
+		SpannableStringBuilder swapped = null;
+		for(final ChipRenderTask task : tasks) {
+			// The placeholder may have been removed or selected in the meantime.
+			if(spannable.getSpanStart(task.mPlaceholder) == -1 || task.mPlaceholder == mSelectedChip)
+				continue;
+			final IRecipientEntry entry = task.mPlaceholder.getEntry();
+			final DrawableRecipientChip chip;
+			if(task.mPainter != mChipPainter) {
+				// The chip dimensions changed while rendering.
+				chip = constructChipSpan(entry, false, false);
+			} else if(task.mBitmap == null) {
+				chip = mChipPainter.createChip(entry, createChipDisplayText(entry), task.mAvatar, false,
+						task.mAvailableWidth);
+			} else {
+				final Drawable drawable = new BitmapDrawable(getResources(), task.mBitmap);
+				drawable.setBounds(0, 0, task.mBitmap.getWidth(), task.mBitmap.getHeight());
+				chip = new VisibleRecipientChip(drawable, entry);
+			}
+			if(swapped == null)
+				swapped = new SpannableStringBuilder(spannable);
+			swapChip(swapped, task.mPlaceholder, chip);
+		}
+		if(swapped != null)
+			replaceSpans(swapped);
+	}
+
+
+	private ChipPainter getChipPainter() {
+		if(mChipPainter == null)
+			mChipPainter = new ChipPainter(mChipBackground, mChipBackgroundPressed, mInvalidChipBackground, getPaint(),
+					mChipFontSize, getChipBitmapHeight(), mChipPadding);
+		return mChipPainter;
+	}
+
+
 	/**
 	 * Calculate the bottom of the line the chip will be located on using: 1) which line the chip appears on 2) the
 	 * height of a chip 3) padding built into the edit text view
@@ -1213,6 +1665,14 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
+	/**
+	 * Height of a rendered chip, which is also the size of its avatar.
+	 */
+	private int getChipBitmapHeight() {
+		return (int) mChipHeight + getResources().getDimensionPixelSize(R.dimen.extra_chip_height);
+	}
+
+
 	private int getActualChipHeight() {
 		return (int) (mChipHeight + getResources().getDimensionPixelSize(R.dimen.extra_chip_height) + mLineSpacingExtra);
 	}
@@ -1333,21 +1793,148 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
+	/**
+	 * Returns the chip drawn at the coordinates of the view, or null. Lines and the chips of a line are both ordered,
+	 * so the chip is found with a search over the lines of the layout and one over the chips of the line.
+	 */
+	public DrawableRecipientChip getChipAt(final float x, final float y) {
+		final Layout layout = getLayout();
+		if(layout == null)
+			return null;
+		final float localX = x - getTotalPaddingLeft() + getScrollX();
+		final float localY = y - getTotalPaddingTop() + getScrollY();
+		if(localY < 0 || localY >= layout.getHeight())
+			return null;
+		final int line = layout.getLineForVertical((int) localY);
+		final ChipIndex chips = getChipIndex();
+		// A chip is never wrapped, so the chips of the line are the ones ending after its start and starting before
+		// its end.
+		int low = chips.indexEndingAtOrAfter(layout.getLineStart(line) + 1);
+		int high = chips.indexEndingAtOrAfter(layout.getLineEnd(line) + 1);
+		// Find the last chip starting left of the touch.
+		DrawableRecipientChip chip = null;
+		float left = 0;
+		while(low < high) {
+			final int mid = (low + high) >>> 1;
+			final DrawableRecipientChip candidate = chips.get(mid);
+			final float candidateLeft = layout.getPrimaryHorizontal(getChipStart(candidate));
+			if(candidateLeft <= localX) {
+				chip = candidate;
+				left = candidateLeft;
+				low = mid + 1;
+			} else
+				high = mid;
+		}
+		if(chip == null || localX >= left + chip.getBounds().width())
+			return null;
+		return chip;
+	}
+
+
 	private DrawableRecipientChip findChip(final int offset) {
-		final DrawableRecipientChip[] chips = getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
 		// Find the chip that contains this offset.
-		for(int i = 0; i < chips.length; i++) {
-			final DrawableRecipientChip chip = chips[i];
-			final int start = getChipStart(chip);
-			final int end = getChipEnd(chip);
-			if(offset >= start && offset <= end)
-				return chip;
+		return getChipIndex().findAt(offset);
+	}
+
+
+	/**
+	 * Rebuilds the text without the chips of the data ids, or without any chip if the ids are null, and with chips for
+	 * the entries added after the remaining chips. Replaces the text with a single edit, so it has to be called in a
+	 * batch.
+	 *
+	 * @param replaceTypedText Whether to drop the text after the chips, otherwise it is kept after the added chips.
+	 * @return Data ids of the removed chips, or null if nothing changed.
+	 */
+	private List<Long> replaceChips(final LongHashSet idsToRemove, final Collection<? extends IRecipientEntry> add,
+									final boolean replaceTypedText) {
+		final Editable text = getText();
+		final SpannableStringBuilder builder = new SpannableStringBuilder();
+		final List<Long> removedIds = new ArrayList<Long>();
+		// Copy the text around the removed chips, up to the end of the last chip and its trailing spaces.
+		int copied = 0;
+		int chipsEnd = 0;
+		for(final DrawableRecipientChip chip : getChipIndex().toArray()) {
+			int end = text.getSpanEnd(chip);
+			while(end < text.length() && text.charAt(end) == ' ')
+				end++;
+			if(idsToRemove == null || idsToRemove.contains(chip.getDataId())) {
+				builder.append(text, copied, text.getSpanStart(chip));
+				copied = end;
+				removedIds.add(chip.getDataId());
+			}
+			chipsEnd = end;
+		}
+		builder.append(text, copied, Math.max(copied, chipsEnd));
+		final int added = add != null ? appendChips(builder, add) : 0;
+		if(removedIds.isEmpty() && added == 0)
+			return null;
+		if(!replaceTypedText)
+			builder.append(text, Math.max(copied, chipsEnd), text.length());
+		text.replace(0, text.length(), builder);
+		setSelection(text.length());
+		return removedIds;
+	}
+
+
+	/**
+	 * Appends chips for the entries to the builder.
+	 *
+	 * @return The number of appended chips.
+	 */
+	private int appendChips(final SpannableStringBuilder builder, final Collection<? extends IRecipientEntry> entries) {
+		int added = 0;
+		for(final IRecipientEntry entry : entries) {
+			// Chips added while collapsed go behind the more chip, they do not need to be rendered.
+			final CharSequence chip = mMoreChip != null ? createHiddenChip(entry) : createChip(entry, false,
+					mRenderChipsAsync);
+			if(chip != null) {
+				builder.append(chip);
+				added++;
+			}
+		}
+		return added;
+	}
+
+
+	/**
+	 * Suspends the text watcher and defers notifying the chip listener until {@link #endBatch()}.
+	 */
+	private void beginBatch() {
+		mBatchDepth++;
+	}
+
+
+	private void endBatch() {
+		if(--mBatchDepth == 0 && mDataChangedPending) {
+			mDataChangedPending = false;
+			dispatchDataChanged();
 		}
-		return null;
 	}
 
 
-	private CharSequence createChip(final IRecipientEntry entry, final boolean pressed) {
+	/**
+	 * Notifies the chip listener, or once at the end of the current batch.
+	 */
+	private void dispatchDataChanged() {
+		if(mBatchDepth > 0)
+			mDataChangedPending = true;
+		else if(mChipListener != null)
+			mChipListener.onDataChanged();
+	}
+
+
+	private ChipIndex getChipIndex() {
+		// TextView calls back into the view from its constructor, before the fields are initialized.
+		if(mChipIndex == null)
+			mChipIndex = new ChipIndex();
+		return mChipIndex;
+	}
+
+
+	/**
+	 * @param async Whether to insert a placeholder chip and render the chip on the render thread, if it is not cached.
+	 */
+	private CharSequence createChip(final IRecipientEntry entry, final boolean pressed, final boolean async) {
 		final String displayText = createAddressText(entry);
 		if(TextUtils.isEmpty(displayText))
 			return null;
@@ -1357,7 +1944,7 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		chipText = new SpannableString(displayText);
 		if(!mNoChips)
 			try {
-				final DrawableRecipientChip chip = constructChipSpan(entry, pressed, false /*
+				final DrawableRecipientChip chip = async && !pressed ? constructChipSpanAsync(entry) : constructChipSpan(entry, pressed, false /*
 																				* leave space for contact
                                                                                 * icon
                                                                                 */);
@@ -1371,6 +1958,273 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
+	/**
+	 * Creates the text of a chip hidden behind the more chip, which is not rendered.
+	 */
+	private CharSequence createHiddenChip(final IRecipientEntry entry) {
+		final String displayText = createAddressText(entry);
+		if(TextUtils.isEmpty(displayText))
+			return null;
+		final SpannableString chipText = new SpannableString(displayText);
+		final DrawableRecipientChip chip = new InvisibleRecipientChip(entry);
+		// Always leave a blank space at the end of a chip.
+		chipText.setSpan(chip, 0, displayText.length() - 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+		chip.setOriginalText(chipText.toString());
+		return chipText;
+	}
+
+
+	/**
+	 * Hides the chips past the max chip lines behind a "+N" chip while the view is not focused. A hidden chip is an
+	 * {@link InvisibleRecipientChip} covering the spaces before it too, so hidden chips take no room at all. Called
+	 * again after chips are added or removed or the width changed, it moves the spans at the cut in place, so only
+	 * chips which become visible are rendered.
+	 */
+	private void collapse() {
+		if(!mCollapsible || mChipMaxLines <= 0 || mNoChips || hasFocus())
+			return;
+		final Layout layout = getLayout();
+		if(layout == null || getWidth() == 0)
+			return;
+		final Spannable text = getSpannable();
+		final ChipIndex chips = getChipIndex();
+		// The more chip is placed again once the cut is known, so that it does not push the chips after it.
+		if(mMoreChip != null)
+			text.removeSpan(mMoreChip);
+		final int hiddenFrom = getFirstHiddenChip();
+		int first = findFirstHiddenChip(hiddenFrom);
+		if(first != -1 && first < hiddenFrom)
+			setFirstHiddenChip(hiddenFrom, first);
+		else if(first == -1 && hiddenFrom > 0)
+			first = hiddenFrom;
+		else {
+			// Show hidden chips while they fit, they are laid out with their real width once shown. The first chip
+			// always stays visible.
+			first = hiddenFrom;
+			while(first < chips.size()) {
+				setFirstHiddenChip(first, first + 1);
+				if(first > 0 && findFirstHiddenChip(first + 1) != first + 1) {
+					setFirstHiddenChip(first + 1, first);
+					break;
+				}
+				first++;
+			}
+		}
+
+		final int count = chips.size() - first;
+		if(count == 0) {
+			mMoreChip = null;
+			mMoreCount = 0;
+			return;
+		}
+		if(mMoreChip == null || count != mMoreCount) {
+			mMoreChip = createMoreChip(count);
+			mMoreCount = count;
+		}
+		// The more chip takes the space after the last visible chip.
+		final int moreStart = getChipEnd(chips.get(first - 1));
+		text.setSpan(mMoreChip, moreStart, moreStart + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+	}
+
+
+	/**
+	 * Returns the index of the first hidden chip, or the number of chips if none is hidden. Hidden chips always follow
+	 * the visible ones. Chips hidden since the last call, which were appended, are made to cover the spaces before them.
+	 */
+	private int getFirstHiddenChip() {
+		final ChipIndex chips = getChipIndex();
+		int low = 0;
+		int high = chips.size();
+		while(low < high) {
+			final int mid = (low + high) >>> 1;
+			if(chips.get(mid) instanceof InvisibleRecipientChip)
+				high = mid;
+			else
+				low = mid + 1;
+		}
+		for(int i = chips.size() - 1; i > low; i--) {
+			final int start = getChipEnd(chips.get(i - 1));
+			if(getChipStart(chips.get(i)) == start)
+				break;
+			hideChip(chips.get(i), start);
+		}
+		return low;
+	}
+
+
+	/**
+	 * Returns the index of the first chip to hide so that the visible chips and the more chip fit on the max chip
+	 * lines, considering only the given number of visible chips as candidates. Returns the number of chips if all of
+	 * them are visible and fit, and -1 if the more chip fits nowhere.
+	 */
+	private int findFirstHiddenChip(final int visible) {
+		final Layout layout = getLayout();
+		final ChipIndex chips = getChipIndex();
+		if(visible == chips.size() && layout.getLineCount() <= mChipMaxLines)
+			return visible;
+		int low = 0;
+		int high = visible;
+		while(low < high) {
+			final int mid = (low + high) >>> 1;
+			if(layout.getLineForOffset(getChipStart(chips.get(mid))) < mChipMaxLines)
+				low = mid + 1;
+			else
+				high = mid;
+		}
+		if(low == chips.size())
+			return low;
+		// The more chip takes the space after the last visible chip, it has to fit on its line.
+		final Editable text = getText();
+		for(int first = low; first > 0; first--) {
+			final int moreStart = getChipEnd(chips.get(first - 1));
+			if(moreStart < text.length() && text.charAt(moreStart) == ' '
+					&& layout.getLineForOffset(moreStart) < mChipMaxLines
+					&& layout.getPrimaryHorizontal(moreStart) + measureMoreChip(chips.size() - first) <= layout.getWidth())
+				return first;
+		}
+		return -1;
+	}
+
+
+	/**
+	 * Moves the cut between the visible and the hidden chips, only the chips between the old and the new cut change.
+	 */
+	private void setFirstHiddenChip(final int oldFirst, final int first) {
+		// A chip getting a new span keeps its place in the index, as the span starts in the same chip text.
+		final ChipIndex chips = getChipIndex();
+		for(int i = oldFirst; i < first; i++)
+			showChip(chips.get(i));
+		// The previously first hidden chip now covers the space before it too.
+		final int last = Math.min(Math.max(oldFirst, first), chips.size() - 1);
+		for(int i = first; i <= last; i++)
+			// Only the first hidden chip leaves the space for the more chip.
+			hideChip(chips.get(i), getChipEnd(chips.get(i - 1)) + (i == first ? 1 : 0));
+	}
+
+
+	/**
+	 * Replaces the chip by an invisible one, or moves its start if it is invisible already.
+	 */
+	private void hideChip(final DrawableRecipientChip chip, final int start) {
+		final Spannable text = getSpannable();
+		final int end = text.getSpanEnd(chip);
+		DrawableRecipientChip hidden = chip;
+		if(!(chip instanceof InvisibleRecipientChip)) {
+			hidden = new InvisibleRecipientChip(chip.getEntry());
+			hidden.setOriginalText(chip.getOriginalText().toString());
+			text.removeSpan(chip);
+		}
+		text.setSpan(hidden, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+	}
+
+
+	/**
+	 * Replaces the invisible chip by a chip rendered like an added one, over the text of the chip only.
+	 */
+	private void showChip(final DrawableRecipientChip chip) {
+		if(!(chip instanceof InvisibleRecipientChip))
+			return;
+		final Spannable text = getSpannable();
+		int start = text.getSpanStart(chip);
+		final int end = text.getSpanEnd(chip);
+		while(start < end && text.charAt(start) == ' ')
+			start++;
+		try {
+			final DrawableRecipientChip shown = mRenderChipsAsync ? constructChipSpanAsync(chip.getEntry())
+					: constructChipSpan(chip.getEntry(), false, false);
+			shown.setOriginalText(chip.getOriginalText().toString());
+			text.removeSpan(chip);
+			text.setSpan(shown, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+		} catch(final NullPointerException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+	}
+
+
+	/**
+	 * Shows the chips hidden by {@link #collapse()} again, they are rendered like added chips.
+	 */
+	private void expand() {
+		if(mMoreChip == null)
+			return;
+		final Spannable text = getSpannable();
+		final ChipIndex chips = getChipIndex();
+		final int moreEnd = text.getSpanEnd(mMoreChip);
+		final SpannableStringBuilder expanded = new SpannableStringBuilder(text);
+		expanded.removeSpan(mMoreChip);
+		mMoreChip = null;
+		mMoreCount = 0;
+		try {
+			for(int i = moreEnd == -1 ? 0 : chips.indexEndingAtOrAfter(moreEnd); i < chips.size(); i++) {
+				final DrawableRecipientChip chip = chips.get(i);
+				if(!(chip instanceof InvisibleRecipientChip))
+					continue;
+				int start = getChipStart(chip);
+				final int end = getChipEnd(chip);
+				while(start < end && expanded.charAt(start) == ' ')
+					start++;
+				final DrawableRecipientChip shown = mRenderChipsAsync ? constructChipSpanAsync(chip.getEntry())
+						: constructChipSpan(chip.getEntry(), false, false);
+				shown.setOriginalText(chip.getOriginalText().toString());
+				expanded.removeSpan(chip);
+				expanded.setSpan(shown, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+			}
+		} catch(final NullPointerException e) {
+			Log.e(TAG, e.getMessage(), e);
+		}
+		replaceSpans(expanded);
+	}
+
+
+	/**
+	 * Replaces the text with a copy that differs only in its spans, with a single edit and a single layout pass.
+	 */
+	private void replaceSpans(final Spanned copy) {
+		final int selectionStart = getSelectionStart();
+		final int selectionEnd = getSelectionEnd();
+		beginBatch();
+		try {
+			getText().replace(0, length(), copy);
+		} finally {
+			endBatch();
+		}
+		if(selectionStart >= 0 && selectionEnd >= 0)
+			setSelection(selectionStart, selectionEnd);
+	}
+
+
+	private ImageSpan createMoreChip(final int count) {
+		final String moreText = String.format(mMoreItem.getText().toString(), count);
+		final TextPaint morePaint = createMorePaint();
+		final int width = measureMoreChip(count);
+		final int height = getLineHeight();
+		final Bitmap drawable = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+		final Canvas canvas = new Canvas(drawable);
+		int adjustedHeight = height;
+		final Layout layout = getLayout();
+		if(layout != null)
+			adjustedHeight -= layout.getLineDescent(0);
+		canvas.drawText(moreText, 0, moreText.length(), mMoreItem.getPaddingLeft(), adjustedHeight, morePaint);
+		final Drawable result = new BitmapDrawable(getResources(), drawable);
+		result.setBounds(0, 0, width, height);
+		return new ImageSpan(result);
+	}
+
+
+	private int measureMoreChip(final int count) {
+		final String moreText = String.format(mMoreItem.getText().toString(), count);
+		return (int) createMorePaint().measureText(moreText) + mMoreItem.getPaddingLeft() + mMoreItem.getPaddingRight();
+	}
+
+
+	private TextPaint createMorePaint() {
+		final TextPaint morePaint = new TextPaint(getPaint());
+		morePaint.setTextSize(mMoreItem.getTextSize());
+		morePaint.setColor(mMoreItem.getCurrentTextColor());
+		return morePaint;
+	}
+
+
 	private void submitItemAtPosition(final int position, boolean callbackEnabled) {
 		final IRecipientEntry entry = getAdapter().getItem(position);
 		if(entry == null)
@@ -1380,12 +2234,12 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		final int start = mTokenizer.findTokenStart(getText(), end);
 		final Editable editable = getText();
 		QwertyKeyListener.markAsReplaced(editable, start, end, "");
-		final CharSequence chip = createChip(entry, false);
+		final CharSequence chip = createChip(entry, false, mRenderChipsAsync);
 		if(chip != null && start >= 0 && end >= 0)
 			editable.replace(start, end, chip);
 		sanitizeBetween();
-		if(mChipListener != null && callbackEnabled)
-			mChipListener.onDataChanged();
+		if(callbackEnabled)
+			dispatchDataChanged();
 	}
 
 
@@ -1520,27 +2374,20 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 
 
 	private void deleselectAdapterItem(DrawableRecipientChip drawableRecipientChip) {
-		List<IRecipientEntry> allItems = getAdapter().getObjects() != null ? getAdapter().getObjects() : new ArrayList<>();
-		for(int i = 0; i < allItems.size(); i++) {
-			if(drawableRecipientChip.getDataId() == allItems.get(i).getDataId()) {
-				getAdapter().setSelected(i, false);
-				if(mChipListener != null) {
-					mChipListener.onDataChanged();
-				}
-				break;
-			}
+		if(getAdapter().containsId(drawableRecipientChip.getDataId())) {
+			getAdapter().setSelectedById(drawableRecipientChip.getDataId(), false);
+			dispatchDataChanged();
 		}
 	}
 
 
 	private void removeChipById(long dataId, final boolean alsoNotifyAboutDataChanges) {
-		final DrawableRecipientChip[] chips = getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
-		final List<DrawableRecipientChip> chipsToRemove = new ArrayList<DrawableRecipientChip>();
-		for(final DrawableRecipientChip chip : chips)
-			if(chip.getDataId() == dataId)
-				chipsToRemove.add(chip);
-		for(final DrawableRecipientChip chip : chipsToRemove)
+		DrawableRecipientChip removed = null;
+		DrawableRecipientChip chip;
+		while((chip = getChipIndex().getById(dataId)) != null && chip != removed) {
 			removeChip(chip, alsoNotifyAboutDataChanges, true);
+			removed = chip;
+		}
 	}
 
 
@@ -1549,17 +2396,29 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	}
 
 
-	public static class CustomCommaTokenizer implements Tokenizer {
-		@Override
-		public int findTokenStart(CharSequence text, int cursor) {
-			int i = cursor;
+	/**
+	 * Comma tokenizer that ignores commas in quotes. It keeps the positions of the commas ending tokens and of the
+	 * quotes of the text it was last asked about, so that finding a token is a binary search. When it is registered as
+	 * a {@link TextWatcher} of that text, the positions are updated from the edited range; otherwise the text is
+	 * scanned again whenever it is a different object. Edits made by other watchers in the middle of an edit, and
+	 * lookups before the tokenizer was told about an edit, fall back to scanning the text again.
+	 */
+	public static class CustomCommaTokenizer implements Tokenizer, TextWatcher {
+		private final IntArrayList mTerminators = new IntArrayList();
+		private final IntArrayList mQuotes = new IntArrayList();
+		private CharSequence mText;
+		private boolean mDirty = true;
+		/**
+		 * Number of edits announced by beforeTextChanged and not yet applied by onTextChanged.
+		 */
+		private int mPendingEdits;
 
-			while(i > 0 && text.charAt(i - 1) != ',') {
-				i = skipIfNeccesary(text, i, true);
-				if(i > 0)
-					i--;
 
-			}
+		@Override
+		public int findTokenStart(CharSequence text, int cursor) {
+			update(text);
+			final int index = mTerminators.lowerBound(cursor);
+			int i = index > 0 ? mTerminators.get(index - 1) + 1 : 0;
 			while(i < cursor && text.charAt(i) == ' ') {
 				i++;
 			}
@@ -1570,19 +2429,26 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 
 		@Override
 		public int findTokenEnd(CharSequence text, int cursor) {
-			int i = cursor;
-			int len = text.length();
+			update(text);
+			final int index = mTerminators.lowerBound(cursor);
+			return index < mTerminators.size() ? mTerminators.get(index) : text.length();
+		}
 
-			while(i < len) {
-				i = skipIfNeccesary(text, i, false);
-				if(text.charAt(i) == ',') {
-					return i;
-				} else {
-					i++;
-				}
-			}
 
-			return len;
+		/**
+		 * Returns the number of tokens of the text, the same as walking it with {@link #findTokenEnd} and skipping each
+		 * terminator and the space after it.
+		 */
+		public int countTokens(CharSequence text) {
+			update(text);
+			final int count = mTerminators.size();
+			int afterLast = 0;
+			if(count > 0) {
+				afterLast = mTerminators.get(count - 1) + 1;
+				if(afterLast < text.length() && text.charAt(afterLast) == ' ')
+					afterLast++;
+			}
+			return afterLast < text.length() ? count + 1 : count;
 		}
 
 
@@ -1609,34 +2475,179 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 		}
 
 
-		private int skipIfNeccesary(CharSequence text, int cursor, boolean forward) {
-			if(forward) {
-				if(text.charAt(cursor - 1) == '"')
-					return findQuotationMark(text, cursor - 1, forward);
-			} else {
-				if(text.charAt(cursor) == '"')
-					return findQuotationMark(text, cursor, forward);
+		@Override
+		public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+			// An edit made while another one is pending would be applied before it.
+			if(mPendingEdits++ > 0)
+				mDirty = true;
+			// Removing a quote or an escape changes which commas are quoted.
+			if(s == mText && !mDirty && containsQuote(s, start, start + count))
+				mDirty = true;
+		}
+
+
+		@Override
+		public void onTextChanged(CharSequence s, int start, int before, int count) {
+			if(mPendingEdits > 0)
+				mPendingEdits--;
+			if(s != mText || mDirty)
+				return;
+			if(containsQuote(s, start, start + count) || start > 0 && s.charAt(start - 1) == '\\') {
+				mDirty = true;
+				return;
 			}
+			final int delta = count - before;
+			shift(mQuotes, start + before, delta);
+			final int from = mTerminators.lowerBound(start);
+			mTerminators.removeRange(from, mTerminators.lowerBound(start + before));
+			// The terminators left from the start on were after the replaced text.
+			shift(mTerminators, start, delta);
+			if(isQuoted(start))
+				return;
+			int index = from;
+			for(int i = start; i < start + count; i++)
+				if(s.charAt(i) == ',')
+					mTerminators.add(index++, i);
+		}
+
 
-			return cursor;
+		@Override
+		public void afterTextChanged(Editable s) {
 		}
 
 
-		private int findQuotationMark(CharSequence text, int cursor, boolean forward) {
-			int i = cursor;
-			if(forward) {
-				while((i > 0 && text.charAt(i - 1) != '"') ||
-						(i > 1 && text.charAt(i - 1) == '"' && text.charAt(i - 2) == '\\')) {
-					i--;
-				}
-				return i != 0 ? i - 1 : cursor;
-			} else {
-				i++;
-				while((i < text.length() && text.charAt(i) != '"') ||
-						(i < text.length() && i > 0 && text.charAt(i) == '"' && text.charAt(i - 1) == '\\')) {
-					i++;
-				}
-				return i != text.length() ? i : cursor;
+		private void update(CharSequence text) {
+			if(text == mText && !mDirty && mPendingEdits == 0)
+				return;
+			mText = text;
+			// A pending edit is already in the text, it must not be applied again once it is announced.
+			mDirty = mPendingEdits > 0;
+			mQuotes.clear();
+			mTerminators.clear();
+			final int length = text.length();
+			for(int i = 0; i < length; i++)
+				if(text.charAt(i) == '"' && (i == 0 || text.charAt(i - 1) != '\\'))
+					mQuotes.add(i);
+			for(int i = 0; i < length; i++)
+				if(text.charAt(i) == ',' && !isQuoted(i))
+					mTerminators.add(i);
+		}
+
+
+		/**
+		 * Returns whether the offset is between an opening quote and its closing one. A quote without a closing one is
+		 * not an opening quote.
+		 */
+		private boolean isQuoted(int offset) {
+			final int index = mQuotes.lowerBound(offset);
+			return index % 2 == 1 && index < mQuotes.size();
+		}
+
+
+		private static boolean containsQuote(CharSequence text, int start, int end) {
+			for(int i = start; i < end; i++) {
+				final char c = text.charAt(i);
+				if(c == '"' || c == '\\')
+					return true;
+			}
+			return false;
+		}
+
+
+		/**
+		 * Adds the delta to the positions from the first one at or after the offset.
+		 */
+		private static void shift(IntArrayList positions, int offset, int delta) {
+			if(delta == 0)
+				return;
+			for(int i = positions.lowerBound(offset); i < positions.size(); i++)
+				positions.set(i, positions.get(i) + delta);
+		}
+	}
+
+
+	/**
+	 * State of a view with chips: the data ids of the chips in order and the text typed after them.
+	 */
+	static class SavedState extends BaseSavedState {
+		final long[] mDataIds;
+		final String mTypedText;
+
+
+		SavedState(Parcelable superState, long[] dataIds, String typedText) {
+			super(superState);
+			mDataIds = dataIds;
+			mTypedText = typedText;
+		}
+
+
+		private SavedState(Parcel source) {
+			super(source);
+			mDataIds = source.createLongArray();
+			mTypedText = source.readString();
+		}
+
+
+		@Override
+		public void writeToParcel(Parcel dest, int flags) {
+			super.writeToParcel(dest, flags);
+			dest.writeLongArray(mDataIds);
+			dest.writeString(mTypedText);
+		}
+
+
+		public static final Parcelable.Creator<SavedState> CREATOR = new Parcelable.Creator<SavedState>() {
+			@Override
+			public SavedState createFromParcel(Parcel source) {
+				return new SavedState(source);
+			}
+
+
+			@Override
+			public SavedState[] newArray(int size) {
+				return new SavedState[size];
+			}
+		};
+	}
+
+
+	/**
+	 * Renders the photo and, for bitmap chips, the chip bitmap of an entry on the render thread.
+	 */
+	private class ChipRenderTask implements ChipRenderQueue.Task {
+		private final IRecipientEntry mEntry;
+		private final DrawableRecipientChip mPlaceholder;
+		private final ChipPainter mPainter;
+		private final TextPaint mPaint;
+		private final Drawable mBackground;
+		private final float mAvailableWidth;
+		private final int mHeight;
+		private Bitmap mAvatar;
+		private Bitmap mBitmap;
+
+
+		ChipRenderTask(IRecipientEntry entry, DrawableRecipientChip placeholder, ChipPainter painter, TextPaint paint,
+					   Drawable background, float availableWidth, int height) {
+			mEntry = entry;
+			mPlaceholder = placeholder;
+			mPainter = painter;
+			mPaint = paint;
+			mBackground = background;
+			mAvailableWidth = availableWidth;
+			mHeight = height;
+		}
+
+
+		@Override
+		public void render() {
+			final boolean hasPhoto = mEntry.getPhotoBytes() != null;
+			mAvatar = loadContactBitmap(mEntry, mHeight, mAvatarDiskCache);
+			if(mBackground != null) {
+				mBitmap = createChipBitmap(mEntry, mPaint, mAvatar, mBackground, mAvailableWidth, mHeight);
+				// A chip with the default photo is rendered again once the photo is loaded, which may already have happened.
+				if(hasPhoto)
+					mChipBitmapCache.put(mEntry.getDataId(), createChipDisplayText(mEntry), false, mEntry.isValid(),
+							(int) mAvailableWidth, mBitmap);
 			}
 		}
 	}
@@ -1646,18 +2657,16 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 	// RecipientTextWatcher //
 	// ///////////////////////
 	private class RecipientTextWatcher implements TextWatcher {
-		private String tempText;
-
-
 		@Override
 		public void afterTextChanged(final Editable s) {
+			if(mBatchDepth > 0)
+				return;
 			// If the text has been set to null or empty, make sure we remove
 			// all the spans we applied.
 			if(TextUtils.isEmpty(s)) {
 				// Remove all the chips spans.
 				final Spannable spannable = getSpannable();
-				final DrawableRecipientChip[] chips = spannable.getSpans(0, getText().length(), DrawableRecipientChip.class);
-				for(final DrawableRecipientChip chip : chips) {
+				for(final DrawableRecipientChip chip : getChipIndex().toArray()) {
 					spannable.removeSpan(chip);
 				}
 				getAdapter().deselectAll();
@@ -1668,6 +2677,8 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 
 		@Override
 		public void onTextChanged(final CharSequence s, final int start, final int before, final int count) {
+			if(mBatchDepth > 0)
+				return;
 			// The user deleted some text OR some text was replaced; check to
 			// see if the insertion point is on a space
 			// following a chip.
@@ -1676,19 +2687,19 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 				mAddressPopup.dismiss();
 			}
 			clearSelectedChip();
-			if(count != before) {
-				final DrawableRecipientChip[] chips = getSpannable().getSpans(0, getText().length(), DrawableRecipientChip.class);
-				final int chipsCount = chips.length;
-				if(mPreviousChipsCount != chipsCount)
-					mPreviousChipsCount = chipsCount;
-			}
+			// The chip index follows chips being added and removed, so there is nothing to recount here.
 			if(before - count == 1) {
 				// If the item deleted is a space, and the thing before the
 				// space is a chip, delete the entire span.
 				final int selStart = getSelectionStart();
-				final DrawableRecipientChip[] repl = getSpannable().getSpans(selStart, s.length(), DrawableRecipientChip.class);
-				if(repl.length > 0) {
-					deleselectAdapterItem(repl[0]);
+				final ChipIndex chips = getChipIndex();
+				int index = chips.indexEndingAtOrAfter(selStart);
+				// A chip ending at the cursor only counts when nothing follows the cursor.
+				if(index < chips.size() && selStart < s.length() && getChipEnd(chips.get(index)) == selStart)
+					index++;
+				if(index < chips.size()) {
+					final DrawableRecipientChip chip = chips.get(index);
+					deleselectAdapterItem(chip);
 					// There is a chip there! Just remove it.
 					final Editable editable = getText();
 					// Add the separator token.
@@ -1698,7 +2709,7 @@ public class CustomRecipientEditTextView extends MultiAutoCompleteTextView imple
 					if(tokenEnd > editable.length())
 						tokenEnd = editable.length();
 					editable.delete(tokenStart, tokenEnd);
-					getSpannable().removeSpan(repl[0]);
+					getSpannable().removeSpan(chip);
 				}
 			}
 		}
@@ -0,0 +1,11 @@
+package com.android.ex.chips;
+
+/**
+ * Looks up recipients by data id, used to restore the chips of a saved state.
+ */
+public interface IRecipientResolver {
+	/**
+	 * Returns the recipient with the data id, or null if it does not exist anymore.
+	 */
+	IRecipientEntry resolve(long dataId);
+}
@@ -0,0 +1,165 @@
+package com.android.ex.chips;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.widget.Filter;
+
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runs {@link SelectableArrayAdapter#filterObjects} off the UI thread. Requests are debounced, a new request cancels
+ * the one in progress while it scans, and only the result of the latest request is published.
+ */
+public class RecipientFilterPipeline {
+	public static final long DEFAULT_DEBOUNCE_DELAY = 100;
+
+	private static ExecutorService sExecutor;
+
+	private final Handler mHandler = new Handler(Looper.getMainLooper());
+	private final AtomicInteger mGeneration = new AtomicInteger();
+	private final AtomicInteger mExecutedCount = new AtomicInteger();
+	private final AtomicInteger mDroppedCount = new AtomicInteger();
+	private long mDebounceDelay = DEFAULT_DEBOUNCE_DELAY;
+	private Runnable mPendingRequest;
+
+
+	private static synchronized Executor getExecutor() {
+		if(sExecutor == null) {
+			sExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "RecipientFilter");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+		}
+		return sExecutor;
+	}
+
+
+	public long getDebounceDelay() {
+		return mDebounceDelay;
+	}
+
+
+	/**
+	 * Set how long to wait for another request before filtering, in milliseconds.
+	 */
+	public void setDebounceDelay(long debounceDelay) {
+		mDebounceDelay = Math.max(debounceDelay, 0);
+	}
+
+
+	/**
+	 * Number of requests whose result has been published.
+	 */
+	public int getExecutedCount() {
+		return mExecutedCount.get();
+	}
+
+
+	/**
+	 * Number of requests superseded before their result could be published.
+	 */
+	public int getDroppedCount() {
+		return mDroppedCount.get();
+	}
+
+
+	/**
+	 * Filters the adapter with the constraint. Has to be called from the UI thread.
+	 *
+	 * @param listener Notified on the UI thread once the result has been published, may be null.
+	 */
+	public <T extends IRecipientEntry> void filter(final SelectableArrayAdapter<T> adapter, CharSequence constraint,
+												   final Filter.FilterListener listener) {
+		final int generation = cancelPendingRequest();
+		// The constraint is usually a view of the edited text, take a snapshot of it.
+		final String query = constraint != null ? constraint.toString() : null;
+		mPendingRequest = new Runnable() {
+			@Override
+			public void run() {
+				mPendingRequest = null;
+				getExecutor().execute(new FilterTask<>(generation, adapter, query, listener));
+			}
+		};
+		mHandler.postDelayed(mPendingRequest, mDebounceDelay);
+	}
+
+
+	/**
+	 * Drops the pending request and stops the one in progress. Has to be called from the UI thread.
+	 */
+	public void cancel() {
+		cancelPendingRequest();
+	}
+
+
+	private int cancelPendingRequest() {
+		if(mPendingRequest != null) {
+			mHandler.removeCallbacks(mPendingRequest);
+			mPendingRequest = null;
+			mDroppedCount.incrementAndGet();
+		}
+		// Requests already handed to the executor notice the new generation and drop themselves.
+		return mGeneration.incrementAndGet();
+	}
+
+
+	private class FilterTask<T extends IRecipientEntry> implements Runnable, RecipientSearchIndex.CancellationSignal {
+		private final int mTaskGeneration;
+		private final SelectableArrayAdapter<T> mAdapter;
+		private final String mQuery;
+		private final Filter.FilterListener mListener;
+
+
+		FilterTask(int generation, SelectableArrayAdapter<T> adapter, String query, Filter.FilterListener listener) {
+			mTaskGeneration = generation;
+			mAdapter = adapter;
+			mQuery = query;
+			mListener = listener;
+		}
+
+
+		@Override
+		public boolean isCanceled() {
+			return mTaskGeneration != mGeneration.get();
+		}
+
+
+		@Override
+		public void run() {
+			if(isCanceled()) {
+				mDroppedCount.incrementAndGet();
+				return;
+			}
+			final List<T> result = mAdapter.filterObjects(mQuery, this);
+			if(isCanceled()) {
+				mDroppedCount.incrementAndGet();
+				return;
+			}
+			mHandler.post(new Runnable() {
+				@Override
+				public void run() {
+					if(isCanceled()) {
+						mDroppedCount.incrementAndGet();
+						return;
+					}
+					mExecutedCount.incrementAndGet();
+					mAdapter.setFilteredObjects(result);
+					if(mListener != null) {
+						mListener.onFilterComplete(mAdapter.getCount());
+					}
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,43 @@
+package com.android.ex.chips;
+
+import com.android.ex.chips.util.IntArrayList;
+
+import java.util.List;
+
+
+/**
+ * Search structure used by {@link SelectableArrayAdapter} to answer filter queries. An entry matches a constraint
+ * when its display name or destination contains the constraint, ignoring case.
+ */
+public interface RecipientSearchIndex<T extends IRecipientEntry> {
+	/**
+	 * Sets the items to index. Implementations may keep already indexed items when the list has only grown at its
+	 * end.
+	 */
+	void setItems(List<T> items);
+
+	/**
+	 * Adds positions of matching items to out, in ascending order.
+	 *
+	 * @param signal Polled while searching, may be null. Searching stops early once it is canceled.
+	 */
+	void search(CharSequence constraint, IntArrayList out, CancellationSignal signal);
+
+	/**
+	 * Adds positions of matching items to out, considering only the candidate positions. Candidates are given and
+	 * added in ascending order.
+	 *
+	 * @param signal Polled while searching, may be null. Searching stops early once it is canceled.
+	 */
+	void search(CharSequence constraint, IntArrayList candidates, IntArrayList out, CancellationSignal signal);
+
+	/**
+	 * Get the indexed item at the given position.
+	 */
+	T get(int position);
+
+
+	interface CancellationSignal {
+		boolean isCanceled();
+	}
+}
@@ -4,8 +4,12 @@ import android.widget.BaseAdapter;
 import android.widget.Filter;
 import android.widget.Filterable;
 
+import com.android.ex.chips.util.IntArrayList;
+import com.android.ex.chips.util.LongHashSet;
+import com.android.ex.chips.util.LongIntHashMap;
+
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
 import java.util.List;
 
 
@@ -15,29 +19,38 @@ import java.util.List;
 public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends BaseAdapter implements Filterable {
 	protected List<T> mData;
 	protected List<T> mFilteredData;
-	private boolean[] mSelectedPositions;
-	private boolean[] mFilteredSelectedPositions;
+	/**
+	 * Data ids of the selected objects. Keyed by id, so the selection survives filtering without remapping positions.
+	 */
+	private final LongHashSet mSelectedIds = new LongHashSet();
+	/**
+	 * Positions of all objects and of the filtered objects by data id, used for lookups by id and to keep the selected
+	 * counts up to date. Data ids are expected to be unique.
+	 */
+	private final LongIntHashMap mObjectPositions = new LongIntHashMap();
+	private final LongIntHashMap mFilteredObjectPositions = new LongIntHashMap();
+	private int mSelectedCount;
+	private int mFilteredSelectedCount;
 	private boolean mEditMode;
 	private SelectDataChangeListener mListener;
+	private RecipientSearchIndex<T> mSearchIndex = new TrigramSearchIndex<>();
+	private volatile int mSearchIndexVersion;
+	/**
+	 * The last constraint and its matching positions. Typing usually only extends the constraint, so the next result
+	 * is a subset of this one and only these positions need to be searched.
+	 */
+	private final Object mFilterLock = new Object();
+	private String mLastConstraint;
+	private IntArrayList mLastPositions = new IntArrayList();
+	private int mLastVersion = -1;
 	private Filter mFilter = new Filter() {
 		@Override
 		protected FilterResults performFiltering(CharSequence constraint) {
 			FilterResults results = new FilterResults();
-			String filter = constraint != null ? constraint.toString() : null;
-			List<T> list = getObjects();
-			if(filter == null || filter.isEmpty()) {
+			List<T> filteredList = filterObjects(constraint, null);
+			if(filteredList == null) {
 				return results;
 			}
-
-			List<T> filteredList = new ArrayList<>();
-			Iterator<T> itChannels = list.iterator();
-			T channel;
-			while(itChannels.hasNext()) {
-				channel = itChannels.next();
-				if(channel.getDisplayName().toLowerCase().contains(filter.toLowerCase()) || (channel.getDestination() != null && channel.getDestination().toLowerCase().contains(filter.toLowerCase()))) {
-					filteredList.add(channel);
-				}
-			}
 			results.count = filteredList.size();
 			results.values = filteredList;
 			return results;
@@ -54,7 +67,8 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 	public SelectableArrayAdapter() {
 		mData = new ArrayList<>(0);
 		mEditMode = false;
-		mSelectedPositions = new boolean[0];
+		updateSearchIndex();
+		updateObjectPositions();
 	}
 
 
@@ -62,8 +76,8 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 		mData = data;
 		mFilteredData = null;
 		mEditMode = false;
-		mSelectedPositions = new boolean[mData.size()];
-		mFilteredSelectedPositions = null;
+		updateSearchIndex();
+		updateObjectPositions();
 	}
 
 
@@ -96,6 +110,9 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 
 	public void reloadObjects(List<T> objects) {
 		mData = objects;
+		updateSearchIndex();
+		updateObjectPositions();
+		updateFilteredObjectPositions();
 		notifyDataSetChanged();
 	}
 
@@ -112,56 +129,91 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 
 
 	public boolean isSelected(int position) {
-		if(mFilteredSelectedPositions != null) {
-			return mFilteredSelectedPositions[position];
-		} else {
-			return mSelectedPositions[position];
-		}
+		return mSelectedIds.contains(getItem(position).getDataId());
 	}
 
 
 	public void setSelected(int position, boolean isSelected) {
-		if(mFilteredSelectedPositions != null && position < mFilteredSelectedPositions.length) {
-			mFilteredSelectedPositions[position] = isSelected;
+		setSelectedById(getItem(position).getDataId(), isSelected);
+	}
+
+
+	public boolean isSelectedById(long dataId) {
+		return mSelectedIds.contains(dataId);
+	}
+
+
+	/**
+	 * Returns the position of the object with the given data id among the items, which are the filtered objects while
+	 * filtered, or -1.
+	 */
+	public int getPositionById(long dataId) {
+		if(mFilteredData != null) {
+			return mFilteredObjectPositions.get(dataId, -1);
 		} else {
-			mSelectedPositions[position] = isSelected;
+			return mObjectPositions.get(dataId, -1);
+		}
+	}
+
+
+	/**
+	 * Returns the object with the given data id, whether it is filtered out or not, or null.
+	 */
+	public T getObjectById(long dataId) {
+		int position = mObjectPositions.get(dataId, -1);
+		return position != -1 ? mData.get(position) : null;
+	}
+
+
+	/**
+	 * Returns whether any of the objects has the given data id, whether it is filtered out or not.
+	 */
+	public boolean containsId(long dataId) {
+		return mObjectPositions.containsKey(dataId);
+	}
+
+
+	/**
+	 * Sets the selected state of the object with the given data id, whether it is filtered out or not.
+	 */
+	public void setSelectedById(long dataId, boolean isSelected) {
+		updateSelection(dataId, isSelected);
+		notifyDataSetChanged();
+	}
+
+
+	/**
+	 * Sets the selected state of the objects with the given data ids and notifies once.
+	 */
+	public void setSelectedByIds(Collection<Long> dataIds, boolean isSelected) {
+		for(Long dataId : dataIds) {
+			updateSelection(dataId, isSelected);
 		}
 		notifyDataSetChanged();
 	}
 
 
 	public void toggleSelected(int position) {
-		if(mFilteredSelectedPositions != null) {
-			setSelected(position, !mFilteredSelectedPositions[position]);
-		} else {
-			setSelected(position, !mSelectedPositions[position]);
-		}
+		setSelected(position, !isSelected(position));
 	}
 
 
 	public void selectAll() {
-		if(mFilteredSelectedPositions != null) {
-			for(int i = mFilteredSelectedPositions.length - 1; i >= 0; i--) {
-				mFilteredSelectedPositions[i] = true;
-			}
-		} else {
-			for(int i = mSelectedPositions.length - 1; i >= 0; i--) {
-				mSelectedPositions[i] = true;
-			}
+		for(int i = getCount() - 1; i >= 0; i--) {
+			updateSelection(getItem(i).getDataId(), true);
 		}
 		notifyDataSetChanged();
 	}
 
 
 	public void deselectAll() {
-		if(mFilteredSelectedPositions != null) {
-			for(int i = mFilteredSelectedPositions.length - 1; i >= 0; i--) {
-				mFilteredSelectedPositions[i] = false;
+		if(mFilteredData != null) {
+			for(int i = mFilteredData.size() - 1; i >= 0; i--) {
+				updateSelection(mFilteredData.get(i).getDataId(), false);
 			}
 		} else {
-			for(int i = mSelectedPositions.length - 1; i >= 0; i--) {
-				mSelectedPositions[i] = false;
-			}
+			mSelectedIds.clear();
+			mSelectedCount = 0;
 		}
 
 		notifyDataSetChanged();
@@ -169,51 +221,17 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 
 
 	public boolean areAllSelected() {
-		if(mFilteredSelectedPositions != null) {
-			for(int i = mFilteredSelectedPositions.length - 1; i >= 0; i--) {
-				if(!mFilteredSelectedPositions[i]) {
-					return false;
-				}
-			}
-		} else {
-			for(int i = mSelectedPositions.length - 1; i >= 0; i--) {
-				if(!mSelectedPositions[i]) {
-					return false;
-				}
-			}
-		}
-
-		return getCount() != 0;
+		return getCount() != 0 && countSelected() == getCount();
 	}
 
 
 	public boolean areSomeSelected() {
-		for(int i = mSelectedPositions.length - 1; i >= 0; i--) {
-			if(mSelectedPositions[i]) {
-				return true;
-			}
-		}
-		return false;
+		return mSelectedCount > 0;
 	}
 
 
 	public int countSelected() {
-		int count = 0;
-		if(mFilteredSelectedPositions != null) {
-			for(int i = mFilteredSelectedPositions.length - 1; i >= 0; i--) {
-				if(mFilteredSelectedPositions[i]) {
-					count += 1;
-				}
-			}
-		} else {
-			for(int i = mSelectedPositions.length - 1; i >= 0; i--) {
-				if(mSelectedPositions[i]) {
-					count += 1;
-				}
-			}
-		}
-
-		return count;
+		return mFilteredData != null ? mFilteredSelectedCount : mSelectedCount;
 	}
 
 
@@ -237,18 +255,16 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 
 
 	public List<T> getSelectedObjects() {
+		if(mFilteredData == null) {
+			return getAllSelectedObjects();
+		}
+
 		List<T> selected = new ArrayList<>();
-		if(mFilteredData != null) {
-			for(int i = 0, max = mFilteredSelectedPositions.length; i < max; i++) {
-				if(mFilteredSelectedPositions[i]) {
-					selected.add(mFilteredData.get(i));
-				}
+		for(int i = 0, max = mFilteredData.size(); i < max; i++) {
+			if(mSelectedIds.contains(mFilteredData.get(i).getDataId())) {
+				selected.add(mFilteredData.get(i));
 			}
-		} else {
-			selected = getAllSelectedObjects();
 		}
-
-
 		return selected;
 	}
 
@@ -262,15 +278,16 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 		mData = objects;
 		mFilteredData = null;
 		mEditMode = false;
-		mSelectedPositions = new boolean[mData.size()];
-		mFilteredSelectedPositions = null;
+		mSelectedIds.clear();
+		updateSearchIndex();
+		updateObjectPositions();
 		notifyDataSetChanged();
 	}
 
 
 	public void setFilteredObjects(List<T> objects) {
-		setFilteredSelectedPositions(objects);
 		mFilteredData = objects;
+		updateFilteredObjectPositions();
 		if(mListener != null) {
 			mListener.dataChanged();
 		}
@@ -284,6 +301,54 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 	}
 
 
+	/**
+	 * Filters the objects on the calling thread, the result can be published through {@link #setFilteredObjects}.
+	 *
+	 * @param signal Checked while searching, may be null. The returned list is incomplete once it is canceled.
+	 * @return Objects matching the constraint or null if the constraint is empty.
+	 */
+	public List<T> filterObjects(CharSequence constraint, RecipientSearchIndex.CancellationSignal signal) {
+		synchronized(mFilterLock) {
+			if(constraint == null || constraint.length() == 0) {
+				mLastConstraint = null;
+				return null;
+			}
+
+			int version = mSearchIndexVersion;
+			RecipientSearchIndex<T> index = mSearchIndex;
+			String lowerCaseConstraint = constraint.toString().toLowerCase();
+			IntArrayList positions = new IntArrayList();
+			List<T> filteredList;
+			synchronized(index) {
+				if(mLastConstraint != null && mLastVersion == version && lowerCaseConstraint.contains(mLastConstraint)) {
+					index.search(constraint, mLastPositions, positions, signal);
+				} else {
+					index.search(constraint, positions, signal);
+				}
+				filteredList = new ArrayList<>(positions.size());
+				for(int i = 0, max = positions.size(); i < max; i++) {
+					filteredList.add(index.get(positions.get(i)));
+				}
+			}
+			if(signal == null || !signal.isCanceled()) {
+				mLastConstraint = lowerCaseConstraint;
+				mLastPositions = positions;
+				mLastVersion = version;
+			}
+			return filteredList;
+		}
+	}
+
+
+	/**
+	 * Sets the index used to filter the objects. It is populated with the current objects right away.
+	 */
+	public void setSearchIndex(RecipientSearchIndex<T> searchIndex) {
+		mSearchIndex = searchIndex;
+		updateSearchIndex();
+	}
+
+
 	public void registerSelectedDataChangeListener(SelectDataChangeListener listener) {
 		mListener = listener;
 	}
@@ -291,8 +356,8 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 
 	public List<T> getAllSelectedObjects() {
 		List<T> selected = new ArrayList<>();
-		for(int i = 0, max = Math.min(mSelectedPositions.length, mData.size()); i < max; i++) {
-			if(mSelectedPositions[i]) {
+		for(int i = 0, max = mData.size(); i < max; i++) {
+			if(mSelectedIds.contains(mData.get(i).getDataId())) {
 				selected.add(mData.get(i));
 			}
 		}
@@ -300,61 +365,54 @@ public abstract class SelectableArrayAdapter<T extends IRecipientEntry> extends
 	}
 
 
-	private void setFilteredSelectedPositions(List<T> objects) {
-		T item;
-		Iterator<T> itItems;
-		int position;
-
-		if(objects == null) {
-			if(mFilteredSelectedPositions != null) {
-				for(int i = 0, max = mFilteredSelectedPositions.length; i < max; i++) {
-					itItems = mData.iterator();
-					position = 0;
-					while(itItems.hasNext()) {
-						item = itItems.next();
-						if(item.equals(mFilteredData.get(i))) {
-							mSelectedPositions[position] = mFilteredSelectedPositions[i];
-						}
-						position++;
-					}
+	private void updateSearchIndex() {
+		mSearchIndex.setItems(mData);
+		// Results of previous filtering may point to other objects now.
+		mSearchIndexVersion++;
+	}
 
-				}
-			}
 
-			mFilteredSelectedPositions = null;
+	private void updateSelection(long dataId, boolean isSelected) {
+		boolean changed = isSelected ? mSelectedIds.add(dataId) : mSelectedIds.remove(dataId);
+		if(!changed) {
 			return;
 		}
+		int delta = isSelected ? 1 : -1;
+		if(mObjectPositions.containsKey(dataId)) {
+			mSelectedCount += delta;
+		}
+		if(mFilteredData != null && mFilteredObjectPositions.containsKey(dataId)) {
+			mFilteredSelectedCount += delta;
+		}
+	}
 
-		if(mFilteredSelectedPositions != null && objects.size() <= mFilteredData.size()) {
-			boolean positions[] = new boolean[objects.size()];
-			for(int i = 0, max = mFilteredSelectedPositions.length; i < max; i++) {
-				itItems = objects.iterator();
-				position = 0;
-				while(itItems.hasNext()) {
-					item = itItems.next();
-					if(item.equals(mFilteredData.get(i))) {
-						positions[position] = mFilteredSelectedPositions[i];
-					}
-					position++;
-				}
-			}
-			mFilteredSelectedPositions = positions;
-		} else {
-			mFilteredSelectedPositions = new boolean[objects.size()];
-			for(int i = 0, max = mSelectedPositions.length; i < max; i++) {
-				itItems = objects.iterator();
-				position = 0;
-				while(itItems.hasNext()) {
-					item = itItems.next();
-					if(item.equals(mData.get(i))) {
-						mFilteredSelectedPositions[position] = mSelectedPositions[i];
-					}
-					position++;
-				}
 
+	private void updateObjectPositions() {
+		mObjectPositions.clear();
+		mSelectedCount = 0;
+		for(int i = 0, max = mData.size(); i < max; i++) {
+			long dataId = mData.get(i).getDataId();
+			mObjectPositions.put(dataId, i);
+			if(mSelectedIds.contains(dataId)) {
+				mSelectedCount++;
 			}
 		}
+	}
+
 
+	private void updateFilteredObjectPositions() {
+		mFilteredObjectPositions.clear();
+		mFilteredSelectedCount = 0;
+		if(mFilteredData == null) {
+			return;
+		}
+		for(int i = 0, max = mFilteredData.size(); i < max; i++) {
+			long dataId = mFilteredData.get(i).getDataId();
+			mFilteredObjectPositions.put(dataId, i);
+			if(mSelectedIds.contains(dataId)) {
+				mFilteredSelectedCount++;
+			}
+		}
 	}
 
 
@@ -2,7 +2,6 @@ package com.android.ex.chips;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -56,12 +55,9 @@ public final class SingleCustomRecipientArrayAdapter extends ArrayAdapter<IRecip
 		display.setVisibility(View.VISIBLE);
 		if(entry.drawPhotos()) {
 			imageView.setVisibility(View.VISIBLE);
-			byte[] photoBytes;
-			photoBytes = entry.getPhotoBytes();
-			if(photoBytes != null) {
-				Bitmap bitmap = ChipsUtil.getClip(BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length));
+			Bitmap bitmap = ChipsUtil.getClippedPhoto(entry, getPhotoSize(imageView.getLayoutParams().width, imageView.getWidth()));
+			if(bitmap != null)
 				imageView.setImageBitmap(bitmap);
-			}
 		} else {
 			imageView.setVisibility(View.GONE);
 		}
@@ -85,6 +81,17 @@ public final class SingleCustomRecipientArrayAdapter extends ArrayAdapter<IRecip
 	}
 
 
+	/**
+	 * Returns the size to clip the photo to. Layout widths like wrap_content are negative, so the measured width is used
+	 * then, or 0 for the size of the photo itself if the icon is not laid out yet.
+	 */
+	static int getPhotoSize(int layoutWidth, int measuredWidth) {
+		if(layoutWidth > 0)
+			return layoutWidth;
+		return Math.max(measuredWidth, 0);
+	}
+
+
 	public interface OnDeleteItemListener {
 		void onDeleteItem(View view, IRecipientEntry entry);
 	}
@@ -0,0 +1,173 @@
+package com.android.ex.chips;
+
+import com.android.ex.chips.util.IntArrayList;
+import com.android.ex.chips.util.LongIntHashMap;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * {@link RecipientSearchIndex} keeping lower cased display names and destinations together with posting lists of
+ * their trigrams. A query is answered by verifying only the items of its rarest trigram, so filtering does not touch
+ * every item and does not allocate per item. Queries shorter than a trigram are answered by scanning the
+ * pre-normalized keys.
+ */
+public class TrigramSearchIndex<T extends IRecipientEntry> implements RecipientSearchIndex<T> {
+	private static final int GRAM_LENGTH = 3;
+	/**
+	 * How many items are checked between two polls of the cancellation signal.
+	 */
+	private static final int CANCELLATION_CHECK_MASK = 0xFF;
+
+	private final List<T> mItems = new ArrayList<>();
+	private final List<String> mNames = new ArrayList<>();
+	private final List<String> mDestinations = new ArrayList<>();
+	private final LongIntHashMap mPostingSlots = new LongIntHashMap();
+	private final List<IntArrayList> mPostings = new ArrayList<>();
+
+
+	private static long gram(String text, int start) {
+		return ((long) text.charAt(start) << 32) | ((long) text.charAt(start + 1) << 16) | text.charAt(start + 2);
+	}
+
+
+	@Override
+	public synchronized void setItems(List<T> items) {
+		final int size = items != null ? items.size() : 0;
+		boolean grown = size >= mItems.size();
+		for(int i = 0, max = mItems.size(); grown && i < max; i++) {
+			grown = items.get(i) == mItems.get(i);
+		}
+		if(!grown) {
+			clear();
+		}
+		for(int i = mItems.size(); i < size; i++) {
+			add(items.get(i));
+		}
+	}
+
+
+	private static boolean isCanceled(int iteration, CancellationSignal signal) {
+		return (iteration & CANCELLATION_CHECK_MASK) == 0 && signal != null && signal.isCanceled();
+	}
+
+
+	@Override
+	public synchronized void search(CharSequence constraint, IntArrayList out, CancellationSignal signal) {
+		final String query = normalize(constraint);
+		if(query.isEmpty()) {
+			return;
+		}
+		if(query.length() < GRAM_LENGTH) {
+			for(int i = 0, max = mItems.size(); i < max; i++) {
+				if(isCanceled(i, signal)) {
+					return;
+				}
+				if(matches(i, query)) {
+					out.add(i);
+				}
+			}
+			return;
+		}
+
+		IntArrayList candidates = null;
+		for(int i = 0; i + GRAM_LENGTH <= query.length(); i++) {
+			final int slot = mPostingSlots.get(gram(query, i), -1);
+			if(slot == -1) {
+				// No item contains this trigram, so nothing can match.
+				return;
+			}
+			final IntArrayList postings = mPostings.get(slot);
+			if(candidates == null || postings.size() < candidates.size()) {
+				candidates = postings;
+			}
+		}
+		for(int i = 0, max = candidates.size(); i < max; i++) {
+			if(isCanceled(i, signal)) {
+				return;
+			}
+			final int position = candidates.get(i);
+			if(matches(position, query)) {
+				out.add(position);
+			}
+		}
+	}
+
+
+	@Override
+	public synchronized void search(CharSequence constraint, IntArrayList candidates, IntArrayList out,
+									CancellationSignal signal) {
+		final String query = normalize(constraint);
+		if(query.isEmpty()) {
+			return;
+		}
+		for(int i = 0, max = candidates.size(); i < max; i++) {
+			if(isCanceled(i, signal)) {
+				return;
+			}
+			final int position = candidates.get(i);
+			if(position < mItems.size() && matches(position, query)) {
+				out.add(position);
+			}
+		}
+	}
+
+
+	@Override
+	public synchronized T get(int position) {
+		return mItems.get(position);
+	}
+
+
+	protected String normalize(CharSequence text) {
+		return text != null ? text.toString().toLowerCase() : "";
+	}
+
+
+	private boolean matches(int position, String query) {
+		final String destination = mDestinations.get(position);
+		return mNames.get(position).contains(query) || (destination != null && destination.contains(query));
+	}
+
+
+	private void add(T item) {
+		final int position = mItems.size();
+		final String name = normalize(item.getDisplayName());
+		final String destination = item.getDestination() != null ? normalize(item.getDestination()) : null;
+		mItems.add(item);
+		mNames.add(name);
+		mDestinations.add(destination);
+		addGrams(name, position);
+		if(destination != null) {
+			addGrams(destination, position);
+		}
+	}
+
+
+	private void addGrams(String text, int position) {
+		for(int i = 0; i + GRAM_LENGTH <= text.length(); i++) {
+			final long gram = gram(text, i);
+			int slot = mPostingSlots.get(gram, -1);
+			if(slot == -1) {
+				slot = mPostings.size();
+				mPostings.add(new IntArrayList(4));
+				mPostingSlots.put(gram, slot);
+			}
+			final IntArrayList postings = mPostings.get(slot);
+			// Positions are indexed in ascending order, so a repeated trigram can only repeat the last position.
+			if(postings.isEmpty() || postings.get(postings.size() - 1) != position) {
+				postings.add(position);
+			}
+		}
+	}
+
+
+	private void clear() {
+		mItems.clear();
+		mNames.clear();
+		mDestinations.clear();
+		mPostingSlots.clear();
+		mPostings.clear();
+	}
+}
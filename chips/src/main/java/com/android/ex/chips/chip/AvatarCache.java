@@ -0,0 +1,130 @@
+package com.android.ex.chips.chip;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.android.ex.chips.util.LongHashSet;
+
+import java.util.Map;
+
+
+/**
+ * Process wide LRU cache of clipped avatars bounded by their size in bytes. Avatars are keyed by the data id of their
+ * entry, or by the resource id of a default photo, and by the size they were clipped to.
+ */
+public final class AvatarCache {
+	private static AvatarCache sInstance;
+
+	private final LruCache<Key, Bitmap> mCache;
+
+
+	private AvatarCache(int maxBytes) {
+		mCache = new LruCache<Key, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(Key key, Bitmap avatar) {
+				return avatar.getByteCount();
+			}
+		};
+	}
+
+
+	public static synchronized AvatarCache getInstance() {
+		if(sInstance == null) {
+			sInstance = new AvatarCache((int) Math.min(Runtime.getRuntime().maxMemory() / 32, Integer.MAX_VALUE));
+		}
+		return sInstance;
+	}
+
+
+	public Bitmap get(long dataId, int size) {
+		return mCache.get(new Key(dataId, size, false));
+	}
+
+
+	public void put(long dataId, int size, Bitmap avatar) {
+		mCache.put(new Key(dataId, size, false), avatar);
+	}
+
+
+	public Bitmap getDefault(int resourceId, int size) {
+		return mCache.get(new Key(resourceId, size, true));
+	}
+
+
+	public void putDefault(int resourceId, int size, Bitmap avatar) {
+		mCache.put(new Key(resourceId, size, true), avatar);
+	}
+
+
+	/**
+	 * Removes the avatars of the data id in every size, e.g. when its photo has changed.
+	 */
+	public void remove(long dataId) {
+		for(Map.Entry<Key, Bitmap> entry : mCache.snapshot().entrySet()) {
+			final Key key = entry.getKey();
+			if(!key.mDefault && key.mId == dataId) {
+				mCache.remove(key);
+			}
+		}
+	}
+
+
+	/**
+	 * Removes the avatars of the data ids in every size, with a single pass over the cache.
+	 */
+	public void removeAll(LongHashSet dataIds) {
+		for(Map.Entry<Key, Bitmap> entry : mCache.snapshot().entrySet()) {
+			final Key key = entry.getKey();
+			if(!key.mDefault && dataIds.contains(key.mId)) {
+				mCache.remove(key);
+			}
+		}
+	}
+
+
+	public void clear() {
+		mCache.evictAll();
+	}
+
+
+	@Override
+	public String toString() {
+		return mCache.toString();
+	}
+
+
+	private static final class Key {
+		private final long mId;
+		private final int mSize;
+		private final boolean mDefault;
+
+
+		Key(long id, int size, boolean isDefault) {
+			mId = id;
+			mSize = size;
+			mDefault = isDefault;
+		}
+
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			}
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return mId == key.mId && mSize == key.mSize && mDefault == key.mDefault;
+		}
+
+
+		@Override
+		public int hashCode() {
+			int result = (int) (mId ^ (mId >>> 32));
+			result = 31 * result + mSize;
+			result = 31 * result + (mDefault ? 1 : 0);
+			return result;
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.android.ex.chips.chip;
+
+import android.graphics.Bitmap;
+import android.util.LruCache;
+
+import com.android.ex.chips.util.LongHashSet;
+
+import java.util.Map;
+
+
+/**
+ * LRU cache of rendered chip bitmaps bounded by their size in bytes. A bitmap is keyed by the data id of its entry,
+ * the text, pressed and valid state it was drawn with and the width that was available to it.
+ */
+public class ChipBitmapCache {
+	private final LruCache<Key, Bitmap> mCache;
+
+
+	public ChipBitmapCache(int maxBytes) {
+		mCache = new LruCache<Key, Bitmap>(maxBytes) {
+			@Override
+			protected int sizeOf(Key key, Bitmap bitmap) {
+				return bitmap.getByteCount();
+			}
+		};
+	}
+
+
+	/**
+	 * Returns a budget of one sixteenth of the heap available to the application.
+	 */
+	public static int getDefaultMaxBytes() {
+		return (int) Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+	}
+
+
+	public Bitmap get(long dataId, String text, boolean pressed, boolean valid, int availableWidth) {
+		return mCache.get(new Key(dataId, text, pressed, valid, availableWidth));
+	}
+
+
+	public void put(long dataId, String text, boolean pressed, boolean valid, int availableWidth, Bitmap bitmap) {
+		mCache.put(new Key(dataId, text, pressed, valid, availableWidth), bitmap);
+	}
+
+
+	/**
+	 * Removes every bitmap rendered for the data id, e.g. when its photo has changed.
+	 */
+	public void remove(long dataId) {
+		for(Map.Entry<Key, Bitmap> entry : mCache.snapshot().entrySet()) {
+			if(entry.getKey().mDataId == dataId) {
+				mCache.remove(entry.getKey());
+			}
+		}
+	}
+
+
+	public void removeAll(LongHashSet dataIds) {
+		for(Map.Entry<Key, Bitmap> entry : mCache.snapshot().entrySet()) {
+			if(dataIds.contains(entry.getKey().mDataId)) {
+				mCache.remove(entry.getKey());
+			}
+		}
+	}
+
+
+	public void clear() {
+		mCache.evictAll();
+	}
+
+
+	public int hitCount() {
+		return mCache.hitCount();
+	}
+
+
+	public int missCount() {
+		return mCache.missCount();
+	}
+
+
+	public int evictionCount() {
+		return mCache.evictionCount();
+	}
+
+
+	public int size() {
+		return mCache.size();
+	}
+
+
+	@Override
+	public String toString() {
+		return mCache.toString();
+	}
+
+
+	private static final class Key {
+		private final long mDataId;
+		private final String mText;
+		private final boolean mPressed;
+		private final boolean mValid;
+		private final int mAvailableWidth;
+
+
+		Key(long dataId, String text, boolean pressed, boolean valid, int availableWidth) {
+			mDataId = dataId;
+			mText = text;
+			mPressed = pressed;
+			mValid = valid;
+			mAvailableWidth = availableWidth;
+		}
+
+
+		@Override
+		public boolean equals(Object o) {
+			if(this == o) {
+				return true;
+			}
+			if(!(o instanceof Key)) {
+				return false;
+			}
+			Key key = (Key) o;
+			return mDataId == key.mDataId && mText.equals(key.mText) && mPressed == key.mPressed && mValid == key.mValid
+					&& mAvailableWidth == key.mAvailableWidth;
+		}
+
+
+		@Override
+		public int hashCode() {
+			int result = (int) (mDataId ^ (mDataId >>> 32));
+			result = 31 * result + mText.hashCode();
+			result = 31 * result + (mPressed ? 1 : 0);
+			result = 31 * result + (mValid ? 1 : 0);
+			result = 31 * result + mAvailableWidth;
+			return result;
+		}
+	}
+}
@@ -0,0 +1,110 @@
+package com.android.ex.chips.chip;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.text.TextPaint;
+import android.text.TextUtils;
+
+import com.android.ex.chips.IRecipientEntry;
+
+
+/**
+ * Draws {@link DrawnRecipientChip}s with paints and backgrounds shared by all chips of a view. Measures and draws the
+ * same way as the bitmap chips of CustomRecipientEditTextView, so both kinds of chips look alike. Avatars are shared
+ * through {@link AvatarCache}. Has to be used from the UI thread.
+ */
+public class ChipPainter {
+	private static final int TEXT_COLOR = 0xFF5C5C5C;
+
+	private final Drawable mBackground;
+	private final Drawable mPressedBackground;
+	private final Drawable mInvalidBackground;
+	private final int mHeight;
+	private final int mChipPadding;
+	private final TextPaint mTextPaint;
+	private final Paint mAvatarPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.ANTI_ALIAS_FLAG);
+	private final float mSpaceWidth;
+	private final Rect mPadding = new Rect();
+	private final Rect mTextBounds = new Rect();
+	private final RectF mAvatarBounds = new RectF();
+
+
+	/**
+	 * @param basePaint Paint of the view, its typeface is used for the chip text.
+	 * @param height Height of a chip including its extra height.
+	 */
+	public ChipPainter(Drawable background, Drawable pressedBackground, Drawable invalidBackground, TextPaint basePaint,
+					   float textSize, int height, int chipPadding) {
+		mBackground = background;
+		mPressedBackground = pressedBackground;
+		mInvalidBackground = invalidBackground;
+		mHeight = height;
+		mChipPadding = chipPadding;
+		mTextPaint = new TextPaint(basePaint);
+		mTextPaint.setTextSize(textSize);
+		mTextPaint.setColor(TEXT_COLOR);
+		mTextPaint.setAntiAlias(true);
+		mSpaceWidth = mTextPaint.measureText(" ");
+	}
+
+
+	public int getHeight() {
+		return mHeight;
+	}
+
+
+	/**
+	 * Measures a chip for the entry and creates it. Nothing is rendered until the chip is drawn.
+	 *
+	 * @param availableWidth Max width the chip may take, the text is ellipsized to fit.
+	 * @param avatar Clipped avatar to draw on the left side, may be null. It is scaled to the chip height.
+	 */
+	public DrawnRecipientChip createChip(IRecipientEntry entry, CharSequence displayText, Bitmap avatar, boolean pressed,
+										 float availableWidth) {
+		final Drawable background = getBackground(entry, pressed);
+		if(background != null) {
+			background.getPadding(mPadding);
+		} else {
+			mPadding.setEmpty();
+		}
+		// Since the icon is a square, it's width is equal to the maximum height it can be inside the chip.
+		final int iconWidth = mHeight - mPadding.top - mPadding.bottom;
+		final CharSequence ellipsizedText = TextUtils.ellipsize(displayText, mTextPaint,
+				availableWidth - iconWidth - mSpaceWidth - mPadding.left - mPadding.right, TextUtils.TruncateAt.END);
+		final int textWidth = (int) mTextPaint.measureText(ellipsizedText, 0, ellipsizedText.length());
+		// Make sure there is a minimum chip width so the user can ALWAYS tap a chip without difficulty.
+		final int width = Math.max(iconWidth * 2, textWidth + (mChipPadding * 2) + iconWidth + mPadding.left + mPadding.right);
+		final float textX = width - mPadding.right - mChipPadding - textWidth;
+		mTextPaint.getTextBounds(ellipsizedText.toString(), 0, ellipsizedText.length(), mTextBounds);
+		final float textY = mHeight - (mHeight - mTextBounds.height()) / 2;
+		return new DrawnRecipientChip(entry, this, ellipsizedText, avatar, pressed, width, mHeight, textX, textY);
+	}
+
+
+	void draw(Canvas canvas, DrawnRecipientChip chip) {
+		final Drawable background = getBackground(chip.getEntry(), chip.isPressed());
+		if(background != null) {
+			background.setBounds(chip.getHeight() / 2, 0, chip.getWidth(), chip.getHeight());
+			background.draw(canvas);
+		}
+		final CharSequence text = chip.getText();
+		canvas.drawText(text, 0, text.length(), chip.getTextX(), chip.getTextY(), mTextPaint);
+		final Bitmap avatar = chip.getAvatar();
+		if(avatar != null) {
+			mAvatarBounds.set(0, 0, chip.getHeight(), chip.getHeight());
+			canvas.drawBitmap(avatar, null, mAvatarBounds, mAvatarPaint);
+		}
+	}
+
+
+	private Drawable getBackground(IRecipientEntry entry, boolean pressed) {
+		if(pressed) {
+			return mPressedBackground;
+		}
+		return entry.isValid() ? mBackground : mInvalidBackground;
+	}
+}
@@ -1,64 +1,194 @@
 package com.android.ex.chips.chip;
 
+import android.content.res.Resources;
 import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.BitmapShader;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Shader;
+import android.os.Build;
+
+import com.android.ex.chips.IRecipientEntry;
 
 
 /**
  * Created by Martin Petrus on 13. 4. 2015.
  */
 public class ChipsUtil {
+	private static final Paint sClipPaint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG | Paint.ANTI_ALIAS_FLAG);
+	private static final Paint sBackgroundPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+	private static final Matrix sClipMatrix = new Matrix();
+	private static final BitmapFactory.Options sDecodeOptions = new BitmapFactory.Options();
+	private static Bitmap sDecodeBuffer;
+
+
+	static {
+		sBackgroundPaint.setStyle(Paint.Style.FILL);
+		sBackgroundPaint.setColor(Color.WHITE);
+	}
+
 
 	public static Bitmap getClip(Bitmap bitmap) {
-		Bitmap dstBmp;
-		if(bitmap.getHeight() < bitmap.getWidth()) {
-			dstBmp = Bitmap.createBitmap(
-					bitmap,
-					Math.abs(bitmap.getHeight() / 2 - bitmap.getWidth() / 2),
-					0,
-					bitmap.getHeight(),
-					bitmap.getHeight()
-			);
-		} else {
-			dstBmp = Bitmap.createBitmap(
-					bitmap,
-					0,
-					Math.abs(bitmap.getHeight() / 2 - bitmap.getWidth() / 2),
-					bitmap.getWidth(),
-					bitmap.getWidth()
-			);
+		return getClip(bitmap, Math.min(bitmap.getWidth(), bitmap.getHeight()));
+	}
+
+
+	/**
+	 * Crops the center square of the bitmap, scales it to the given size and clips it to a circle on white background.
+	 * A non-positive size keeps the shorter side of the bitmap.
+	 */
+	public static synchronized Bitmap getClip(Bitmap bitmap, int size) {
+		final int width = bitmap.getWidth();
+		final int height = bitmap.getHeight();
+		if(size <= 0) {
+			size = Math.min(width, height);
 		}
+		final float scale = (float) size / Math.min(width, height);
+		sClipMatrix.setScale(scale, scale);
+		sClipMatrix.postTranslate((size - width * scale) / 2, (size - height * scale) / 2);
+		final BitmapShader bitmapShader = new BitmapShader(bitmap, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+		bitmapShader.setLocalMatrix(sClipMatrix);
 
+		final Bitmap output = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+		final Canvas canvas = new Canvas(output);
+		sClipPaint.setShader(bitmapShader);
+		canvas.drawCircle(size / 2f, size / 2f, size / 2f, sBackgroundPaint);
+		canvas.drawCircle(size / 2f, size / 2f, size / 2f, sClipPaint);
+		// Do not keep the source bitmap reachable.
+		sClipPaint.setShader(null);
 
-		int width = dstBmp.getWidth();
-		int height = dstBmp.getHeight();
-		int diameter = width > height ? width : height;
-		int intrinsicWidth = Math.min(width, diameter);
-		int intrinsicHeight = Math.min(height, diameter);
+		return output;
+	}
 
-		Bitmap output = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
 
-		BitmapShader bitmapShader = new BitmapShader(dstBmp, Shader.TileMode.CLAMP, Shader.TileMode.CLAMP);
+	/**
+	 * Returns the photo of the entry clipped to the given size. The photo is decoded and clipped only if it is not in
+	 * {@link AvatarCache} yet.
+	 *
+	 * @return The clipped photo or null if the entry has no photo bytes.
+	 */
+	public static Bitmap getClippedPhoto(IRecipientEntry entry, int size) {
+		return getClippedPhoto(entry, size, null);
+	}
 
-		Canvas canvas = new Canvas(output);
-		Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG | Paint.DITHER_FLAG);
-		paint.setAntiAlias(true);
-		paint.setShader(bitmapShader);
 
-		Paint backgroundPaint = new Paint();
-		backgroundPaint.setStyle(Paint.Style.FILL);
-		backgroundPaint.setAntiAlias(true);
-		backgroundPaint.setColor(Color.WHITE);
+	/**
+	 * Same as {@link #getClippedPhoto(IRecipientEntry, int)}, but also stores decoded photos in the disk cache and
+	 * falls back to it while the entry has no photo bytes. It may block on I/O.
+	 */
+	public static Bitmap getClippedPhoto(IRecipientEntry entry, int size, IAvatarDiskCache diskCache) {
+		final AvatarCache cache = AvatarCache.getInstance();
+		Bitmap avatar = cache.get(entry.getDataId(), size);
+		if(avatar == null) {
+			final byte[] photoBytes = entry.getPhotoBytes();
+			if(photoBytes == null) {
+				avatar = diskCache != null ? diskCache.get(entry.getDataId(), size) : null;
+				if(avatar != null) {
+					cache.put(entry.getDataId(), size, avatar);
+				}
+				return avatar;
+			}
+			avatar = decodeClip(photoBytes, null, 0, size);
+			if(avatar == null) {
+				return null;
+			}
+			cache.put(entry.getDataId(), size, avatar);
+			if(diskCache != null) {
+				diskCache.put(entry.getDataId(), size, photoBytes, avatar);
+			}
+		}
+		return avatar;
+	}
 
-		canvas.drawCircle(intrinsicWidth / 2, intrinsicHeight / 2, (diameter / 2), backgroundPaint);
-		canvas.drawCircle(intrinsicWidth / 2, intrinsicHeight / 2, (diameter / 2), paint);
 
+	/**
+	 * Returns the default photo resource clipped to the given size, cached in {@link AvatarCache}.
+	 *
+	 * @return The clipped photo or null if the resource could not be decoded.
+	 */
+	public static Bitmap getClippedDefaultPhoto(Resources resources, int resourceId, int size) {
+		final AvatarCache cache = AvatarCache.getInstance();
+		Bitmap avatar = cache.getDefault(resourceId, size);
+		if(avatar == null) {
+			avatar = decodeClip(null, resources, resourceId, size);
+			if(avatar == null) {
+				return null;
+			}
+			cache.putDefault(resourceId, size, avatar);
+		}
+		return avatar;
+	}
 
-		return output;
+
+	/**
+	 * Decodes the photo bytes, or the resource if bytes are null, subsampled close to the given size and clips it. On
+	 * KitKat and newer the decoded pixels go to a shared buffer, since only the clipped copy is kept.
+	 *
+	 * @return The clipped photo or null if it could not be decoded.
+	 */
+	private static synchronized Bitmap decodeClip(byte[] photoBytes, Resources resources, int resourceId, int size) {
+		final BitmapFactory.Options options = sDecodeOptions;
+		options.inJustDecodeBounds = true;
+		options.inSampleSize = 1;
+		options.inScaled = false;
+		options.inBitmap = null;
+		decode(photoBytes, resources, resourceId, options);
+		if(options.outWidth <= 0 || options.outHeight <= 0) {
+			return null;
+		}
+
+		options.inJustDecodeBounds = false;
+		options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, size);
+		options.inMutable = true;
+		Bitmap photo = null;
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT && sDecodeBuffer != null) {
+			options.inBitmap = sDecodeBuffer;
+			try {
+				photo = decode(photoBytes, resources, resourceId, options);
+			} catch(IllegalArgumentException e) {
+				// The buffer is too small for this photo, decode into a new bitmap.
+			}
+			options.inBitmap = null;
+		}
+		if(photo == null) {
+			photo = decode(photoBytes, resources, resourceId, options);
+		}
+		if(photo == null) {
+			return null;
+		}
+
+		final Bitmap clip = getClip(photo, size);
+		if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+			if(sDecodeBuffer == null || photo.getAllocationByteCount() > sDecodeBuffer.getAllocationByteCount()) {
+				sDecodeBuffer = photo;
+			}
+		}
+		return clip;
 	}
 
+
+	private static Bitmap decode(byte[] photoBytes, Resources resources, int resourceId, BitmapFactory.Options options) {
+		if(photoBytes != null) {
+			return BitmapFactory.decodeByteArray(photoBytes, 0, photoBytes.length, options);
+		}
+		return BitmapFactory.decodeResource(resources, resourceId, options);
+	}
+
+
+	/**
+	 * Returns the largest power of two that keeps the shorter side of the decoded image at least the given size.
+	 */
+	static int calculateSampleSize(int width, int height, int size) {
+		final int side = Math.min(width, height);
+		int sampleSize = 1;
+		if(size > 0) {
+			while(side / (sampleSize * 2) >= size) {
+				sampleSize *= 2;
+			}
+		}
+		return sampleSize;
+	}
 }
@@ -0,0 +1,192 @@
+package com.android.ex.chips.chip;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+
+/**
+ * {@link IAvatarDiskCache} keeping the avatars as PNG files in a directory bounded by their size in bytes. A file is
+ * named {@code <dataId>-<size>-<hash>.png}, where the hash is a CRC32 of the photo bytes, so that an avatar is only
+ * written again when the photo changed. The least recently used files are deleted first.
+ */
+public class DiskAvatarCache implements IAvatarDiskCache {
+	private static final String TAG = "DiskAvatarCache";
+	private static final String EXTENSION = ".png";
+	private static final String TEMP_EXTENSION = ".tmp";
+
+	private final File mDirectory;
+	private final long mMaxBytes;
+	/**
+	 * Files by {@code <dataId>-<size>}, least recently used first. Read from the directory on first use.
+	 */
+	private LinkedHashMap<String, File> mFiles;
+	private long mSize;
+
+
+	public DiskAvatarCache(File directory, long maxBytes) {
+		mDirectory = directory;
+		mMaxBytes = maxBytes;
+	}
+
+
+	@Override
+	public synchronized Bitmap get(long dataId, int size) {
+		final String key = getKey(dataId, size);
+		final File file = getFiles().get(key);
+		if(file == null) {
+			return null;
+		}
+		final Bitmap avatar = BitmapFactory.decodeFile(file.getPath());
+		if(avatar == null) {
+			remove(key);
+			return null;
+		}
+		// The order of the files is restored from their modification time.
+		file.setLastModified(System.currentTimeMillis());
+		return avatar;
+	}
+
+
+	@Override
+	public synchronized void put(long dataId, int size, byte[] photoBytes, Bitmap avatar) {
+		final String key = getKey(dataId, size);
+		final String name = key + "-" + getHash(photoBytes) + EXTENSION;
+		final File current = getFiles().get(key);
+		if(current != null && current.getName().equals(name)) {
+			return;
+		}
+		final File temp = new File(mDirectory, name + TEMP_EXTENSION);
+		if(!write(avatar, temp)) {
+			temp.delete();
+			return;
+		}
+		remove(key);
+		final File file = new File(mDirectory, name);
+		if(!temp.renameTo(file)) {
+			temp.delete();
+			return;
+		}
+		mFiles.put(key, file);
+		mSize += file.length();
+		trim();
+	}
+
+
+	@Override
+	public synchronized void clear() {
+		for(File file : getFiles().values()) {
+			file.delete();
+		}
+		mFiles.clear();
+		mSize = 0;
+	}
+
+
+	private LinkedHashMap<String, File> getFiles() {
+		if(mFiles != null) {
+			return mFiles;
+		}
+		mFiles = new LinkedHashMap<>(16, 0.75f, true);
+		mSize = 0;
+		if(!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+			Log.w(TAG, "Unable to create the avatar cache directory " + mDirectory);
+			return mFiles;
+		}
+		final File[] files = mDirectory.listFiles();
+		if(files == null) {
+			return mFiles;
+		}
+		Arrays.sort(files, new Comparator<File>() {
+			@Override
+			public int compare(File lhs, File rhs) {
+				final long lhsModified = lhs.lastModified();
+				final long rhsModified = rhs.lastModified();
+				return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+			}
+		});
+		for(File file : files) {
+			final String name = file.getName();
+			final int hashStart = name.lastIndexOf('-');
+			if(!name.endsWith(EXTENSION) || hashStart <= 0) {
+				// Left over from an interrupted write.
+				if(name.endsWith(TEMP_EXTENSION)) {
+					file.delete();
+				}
+				continue;
+			}
+			// A newer avatar of the same key replaces the older one.
+			final String key = name.substring(0, hashStart);
+			remove(key);
+			mFiles.put(key, file);
+			mSize += file.length();
+		}
+		trim();
+		return mFiles;
+	}
+
+
+	private void remove(String key) {
+		final File file = mFiles.remove(key);
+		if(file != null) {
+			mSize -= file.length();
+			file.delete();
+		}
+	}
+
+
+	private void trim() {
+		final Iterator<File> iterator = mFiles.values().iterator();
+		while(mSize > mMaxBytes && iterator.hasNext()) {
+			final File file = iterator.next();
+			mSize -= file.length();
+			file.delete();
+			iterator.remove();
+		}
+	}
+
+
+	private static boolean write(Bitmap avatar, File file) {
+		OutputStream out = null;
+		try {
+			out = new BufferedOutputStream(new FileOutputStream(file));
+			final boolean written = avatar.compress(Bitmap.CompressFormat.PNG, 100, out);
+			out.close();
+			out = null;
+			return written;
+		} catch(IOException e) {
+			Log.w(TAG, "Unable to write the avatar " + file, e);
+			return false;
+		} finally {
+			if(out != null) {
+				try {
+					out.close();
+				} catch(IOException ignored) {
+				}
+			}
+		}
+	}
+
+
+	private static String getKey(long dataId, int size) {
+		return dataId + "-" + size;
+	}
+
+
+	private static String getHash(byte[] photoBytes) {
+		final CRC32 crc = new CRC32();
+		crc.update(photoBytes);
+		return Long.toHexString(crc.getValue());
+	}
+}
@@ -0,0 +1,166 @@
+package com.android.ex.chips.chip;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.text.style.ReplacementSpan;
+
+import com.android.ex.chips.IRecipientEntry;
+
+
+/**
+ * Chip drawn straight onto the text canvas by a shared {@link ChipPainter}, so that it does not hold a bitmap of its
+ * own. Aligned to the bottom of the line like {@link VisibleRecipientChip}.
+ */
+public class DrawnRecipientChip extends ReplacementSpan implements DrawableRecipientChip {
+	private final SimpleRecipientChip mDelegate;
+	private final ChipPainter mPainter;
+	private final CharSequence mText;
+	private final Bitmap mAvatar;
+	private final boolean mPressed;
+	private final int mWidth;
+	private final int mHeight;
+	private final float mTextX;
+	private final float mTextY;
+
+
+	DrawnRecipientChip(final IRecipientEntry entry, final ChipPainter painter, final CharSequence text, final Bitmap avatar,
+					   final boolean pressed, final int width, final int height, final float textX, final float textY) {
+		super();
+
+		mDelegate = new SimpleRecipientChip(entry);
+		mPainter = painter;
+		mText = text;
+		mAvatar = avatar;
+		mPressed = pressed;
+		mWidth = width;
+		mHeight = height;
+		mTextX = textX;
+		mTextY = textY;
+	}
+
+
+	@Override
+	public boolean isSelected() {
+		return mDelegate.isSelected();
+	}
+
+
+	@Override
+	public void setSelected(final boolean selected) {
+		mDelegate.setSelected(selected);
+	}
+
+
+	@Override
+	public CharSequence getDisplay() {
+		return mDelegate.getDisplay();
+	}
+
+
+	@Override
+	public CharSequence getValue() {
+		return mDelegate.getValue();
+	}
+
+
+	@Override
+	public long getDataId() {
+		return mDelegate.getDataId();
+	}
+
+
+	@Override
+	public IRecipientEntry getEntry() {
+		return mDelegate.getEntry();
+	}
+
+
+	@Override
+	public CharSequence getOriginalText() {
+		return mDelegate.getOriginalText();
+	}
+
+
+	@Override
+	public void setOriginalText(final String text) {
+		mDelegate.setOriginalText(text);
+	}
+
+
+	@Override
+	public int getSize(final Paint paint, final CharSequence text, final int start, final int end,
+					   final Paint.FontMetricsInt fm) {
+		if(fm != null) {
+			fm.ascent = -mHeight;
+			fm.descent = 0;
+			fm.top = fm.ascent;
+			fm.bottom = 0;
+		}
+		return mWidth;
+	}
+
+
+	@Override
+	public void draw(final Canvas canvas, final CharSequence text, final int start, final int end,
+					 final float x, final int top, final int y, final int bottom, final Paint paint) {
+		canvas.save();
+		canvas.translate(x, bottom - mHeight);
+		draw(canvas);
+		canvas.restore();
+	}
+
+
+	@Override
+	public Rect getBounds() {
+		return new Rect(0, 0, mWidth, mHeight);
+	}
+
+
+	@Override
+	public void draw(final Canvas canvas) {
+		mPainter.draw(canvas, this);
+	}
+
+
+	@Override
+	public String toString() {
+		return mDelegate.toString();
+	}
+
+
+	CharSequence getText() {
+		return mText;
+	}
+
+
+	Bitmap getAvatar() {
+		return mAvatar;
+	}
+
+
+	boolean isPressed() {
+		return mPressed;
+	}
+
+
+	int getWidth() {
+		return mWidth;
+	}
+
+
+	int getHeight() {
+		return mHeight;
+	}
+
+
+	float getTextX() {
+		return mTextX;
+	}
+
+
+	float getTextY() {
+		return mTextY;
+	}
+}
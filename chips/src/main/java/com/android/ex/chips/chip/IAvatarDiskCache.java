@@ -0,0 +1,23 @@
+package com.android.ex.chips.chip;
+
+import android.graphics.Bitmap;
+
+
+/**
+ * Persistent cache of clipped avatars, consulted before the photo bytes of an entry are loaded. Avatars are keyed by
+ * the data id of their entry and the size they were clipped to. It is only used from the render thread, so
+ * implementations may block on I/O.
+ */
+public interface IAvatarDiskCache {
+	/**
+	 * Returns the last avatar stored for the data id in the size, or null.
+	 */
+	Bitmap get(long dataId, int size);
+
+	/**
+	 * Stores the avatar clipped from the photo bytes, replacing an avatar of other photo bytes.
+	 */
+	void put(long dataId, int size, byte[] photoBytes, Bitmap avatar);
+
+	void clear();
+}
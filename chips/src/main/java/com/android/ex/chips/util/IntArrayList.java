@@ -0,0 +1,107 @@
+package com.android.ex.chips.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Growable list of primitive ints, used where boxing every element would dominate the cost.
+ */
+public final class IntArrayList {
+	private static final int DEFAULT_CAPACITY = 8;
+
+	private int[] mValues;
+	private int mSize;
+
+
+	public IntArrayList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+
+	public IntArrayList(int capacity) {
+		mValues = new int[Math.max(capacity, 1)];
+	}
+
+
+	public int size() {
+		return mSize;
+	}
+
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+
+	public int get(int index) {
+		if(index >= mSize) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		return mValues[index];
+	}
+
+
+	public void set(int index, int value) {
+		if(index >= mSize) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		mValues[index] = value;
+	}
+
+
+	public void add(int value) {
+		if(mSize == mValues.length) {
+			mValues = Arrays.copyOf(mValues, mSize * 2);
+		}
+		mValues[mSize++] = value;
+	}
+
+
+	public void add(int index, int value) {
+		if(index > mSize) {
+			throw new ArrayIndexOutOfBoundsException(index);
+		}
+		if(mSize == mValues.length) {
+			mValues = Arrays.copyOf(mValues, mSize * 2);
+		}
+		System.arraycopy(mValues, index, mValues, index + 1, mSize - index);
+		mValues[index] = value;
+		mSize++;
+	}
+
+
+	/**
+	 * Removes the values from the index {@code from}, inclusive, to {@code to}, exclusive.
+	 */
+	public void removeRange(int from, int to) {
+		if(from > to || to > mSize) {
+			throw new ArrayIndexOutOfBoundsException(to);
+		}
+		System.arraycopy(mValues, to, mValues, from, mSize - to);
+		mSize -= to - from;
+	}
+
+
+	/**
+	 * Returns the index of the first value not less than the given one, or {@link #size()} if there is none. The
+	 * values must be sorted.
+	 */
+	public int lowerBound(int value) {
+		int low = 0;
+		int high = mSize;
+		while(low < high) {
+			final int mid = (low + high) >>> 1;
+			if(mValues[mid] < value) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+
+	public void clear() {
+		mSize = 0;
+	}
+}
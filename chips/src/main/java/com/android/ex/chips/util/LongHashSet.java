@@ -0,0 +1,127 @@
+package com.android.ex.chips.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Open addressing hash set of primitive longs. Elements are not boxed, so lookups do not allocate.
+ */
+public final class LongHashSet {
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] mKeys;
+	private boolean[] mUsed;
+	private int mSize;
+	private int mThreshold;
+
+
+	public LongHashSet() {
+		this(DEFAULT_CAPACITY);
+	}
+
+
+	public LongHashSet(int expectedSize) {
+		allocate(LongIntHashMap.tableSizeFor(expectedSize));
+	}
+
+
+	public int size() {
+		return mSize;
+	}
+
+
+	public boolean isEmpty() {
+		return mSize == 0;
+	}
+
+
+	public boolean contains(long value) {
+		return indexOf(value) >= 0;
+	}
+
+
+	/**
+	 * @return True if the value was not in the set yet.
+	 */
+	public boolean add(long value) {
+		final int mask = mKeys.length - 1;
+		int index = LongIntHashMap.hash(value) & mask;
+		while(mUsed[index]) {
+			if(mKeys[index] == value) {
+				return false;
+			}
+			index = (index + 1) & mask;
+		}
+		mUsed[index] = true;
+		mKeys[index] = value;
+		if(++mSize > mThreshold) {
+			rehash(mKeys.length * 2);
+		}
+		return true;
+	}
+
+
+	/**
+	 * @return True if the value was in the set.
+	 */
+	public boolean remove(long value) {
+		int index = indexOf(value);
+		if(index < 0) {
+			return false;
+		}
+		// Shift back the following entries of the probe sequence, so that no tombstones are needed.
+		final int mask = mKeys.length - 1;
+		int next = (index + 1) & mask;
+		while(mUsed[next]) {
+			final int ideal = LongIntHashMap.hash(mKeys[next]) & mask;
+			if(((next - ideal) & mask) >= ((next - index) & mask)) {
+				mKeys[index] = mKeys[next];
+				index = next;
+			}
+			next = (next + 1) & mask;
+		}
+		mUsed[index] = false;
+		mSize--;
+		return true;
+	}
+
+
+	public void clear() {
+		Arrays.fill(mUsed, false);
+		mSize = 0;
+	}
+
+
+	private int indexOf(long value) {
+		final int mask = mKeys.length - 1;
+		int index = LongIntHashMap.hash(value) & mask;
+		while(mUsed[index]) {
+			if(mKeys[index] == value) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+
+	private void rehash(int capacity) {
+		final long[] keys = mKeys;
+		final boolean[] used = mUsed;
+		allocate(capacity);
+		mSize = 0;
+		for(int i = 0; i < keys.length; i++) {
+			if(used[i]) {
+				add(keys[i]);
+			}
+		}
+	}
+
+
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mUsed = new boolean[capacity];
+		mThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+}
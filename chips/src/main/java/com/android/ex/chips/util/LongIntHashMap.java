@@ -0,0 +1,153 @@
+package com.android.ex.chips.util;
+
+import java.util.Arrays;
+
+
+/**
+ * Open addressing hash map from primitive long keys to primitive int values. Neither keys nor values are boxed,
+ * so lookups do not allocate.
+ */
+public final class LongIntHashMap {
+	private static final int DEFAULT_CAPACITY = 16;
+	private static final float LOAD_FACTOR = 0.6f;
+
+	private long[] mKeys;
+	private int[] mValues;
+	private boolean[] mUsed;
+	private int mSize;
+	private int mThreshold;
+
+
+	public LongIntHashMap() {
+		this(DEFAULT_CAPACITY);
+	}
+
+
+	public LongIntHashMap(int expectedSize) {
+		allocate(tableSizeFor(expectedSize));
+	}
+
+
+	public int size() {
+		return mSize;
+	}
+
+
+	public boolean containsKey(long key) {
+		return indexOf(key) >= 0;
+	}
+
+
+	/**
+	 * Returns the value mapped to the key, or defaultValue if there is none.
+	 */
+	public int get(long key, int defaultValue) {
+		final int index = indexOf(key);
+		return index >= 0 ? mValues[index] : defaultValue;
+	}
+
+
+	public void put(long key, int value) {
+		final int mask = mKeys.length - 1;
+		int index = hash(key) & mask;
+		while(mUsed[index]) {
+			if(mKeys[index] == key) {
+				mValues[index] = value;
+				return;
+			}
+			index = (index + 1) & mask;
+		}
+		mUsed[index] = true;
+		mKeys[index] = key;
+		mValues[index] = value;
+		if(++mSize > mThreshold) {
+			rehash(mKeys.length * 2);
+		}
+	}
+
+
+	/**
+	 * Removes the mapping for the key.
+	 *
+	 * @return True if there was a mapping to remove.
+	 */
+	public boolean remove(long key) {
+		int index = indexOf(key);
+		if(index < 0) {
+			return false;
+		}
+		// Shift back the following entries of the probe sequence, so that no tombstones are needed.
+		final int mask = mKeys.length - 1;
+		int next = (index + 1) & mask;
+		while(mUsed[next]) {
+			final int ideal = hash(mKeys[next]) & mask;
+			if(((next - ideal) & mask) >= ((next - index) & mask)) {
+				mKeys[index] = mKeys[next];
+				mValues[index] = mValues[next];
+				index = next;
+			}
+			next = (next + 1) & mask;
+		}
+		mUsed[index] = false;
+		mSize--;
+		return true;
+	}
+
+
+	public void clear() {
+		Arrays.fill(mUsed, false);
+		mSize = 0;
+	}
+
+
+	private int indexOf(long key) {
+		final int mask = mKeys.length - 1;
+		int index = hash(key) & mask;
+		while(mUsed[index]) {
+			if(mKeys[index] == key) {
+				return index;
+			}
+			index = (index + 1) & mask;
+		}
+		return -1;
+	}
+
+
+	private void rehash(int capacity) {
+		final long[] keys = mKeys;
+		final int[] values = mValues;
+		final boolean[] used = mUsed;
+		allocate(capacity);
+		mSize = 0;
+		for(int i = 0; i < keys.length; i++) {
+			if(used[i]) {
+				put(keys[i], values[i]);
+			}
+		}
+	}
+
+
+	private void allocate(int capacity) {
+		mKeys = new long[capacity];
+		mValues = new int[capacity];
+		mUsed = new boolean[capacity];
+		mThreshold = (int) (capacity * LOAD_FACTOR);
+	}
+
+
+	static int tableSizeFor(int expectedSize) {
+		int capacity = DEFAULT_CAPACITY;
+		while(capacity * LOAD_FACTOR < expectedSize) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+
+	static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+}
@@ -0,0 +1,60 @@
+package com.android.ex.chips;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class CustomCommaTokenizerTest {
+	@Test
+	public void followsEdits() {
+		final CustomRecipientEditTextView.CustomCommaTokenizer tokenizer = new CustomRecipientEditTextView.CustomCommaTokenizer();
+		final StringBuilder text = new StringBuilder("Alice, Bob, ");
+		assertTokens(tokenizer, text);
+		edit(tokenizer, text, text.length(), text.length(), "Carol, ");
+		assertTokens(tokenizer, text);
+		edit(tokenizer, text, 0, 7, "");
+		assertTokens(tokenizer, text);
+		edit(tokenizer, text, 3, 3, "\"x, y\"");
+		assertTokens(tokenizer, text);
+	}
+
+
+	@Test
+	public void backspaceOverSeparatorWithNestedEdit() {
+		final CustomRecipientEditTextView.CustomCommaTokenizer tokenizer = new CustomRecipientEditTextView.CustomCommaTokenizer();
+		final StringBuilder text = new StringBuilder("Alice, Bob, ");
+		assertTokens(tokenizer, text);
+		// The space after the first separator is deleted.
+		tokenizer.beforeTextChanged(text, 6, 1, 0);
+		text.delete(6, 7);
+		// A watcher notified before the tokenizer removes the token in front of the cursor.
+		final int tokenStart = tokenizer.findTokenStart(text, 5);
+		final int tokenEnd = Math.min(tokenizer.findTokenEnd(text, tokenStart) + 1, text.length());
+		edit(tokenizer, text, tokenStart, tokenEnd, "");
+		tokenizer.onTextChanged(text, 6, 1, 0);
+		assertEquals("Bob, ", text.toString());
+		assertTokens(tokenizer, text);
+	}
+
+
+	private static void edit(CustomRecipientEditTextView.CustomCommaTokenizer tokenizer, StringBuilder text, int start,
+							 int end, String replacement) {
+		tokenizer.beforeTextChanged(text, start, end - start, replacement.length());
+		text.replace(start, end, replacement);
+		tokenizer.onTextChanged(text, start, end - start, replacement.length());
+	}
+
+
+	/**
+	 * Compares the tokenizer with a new one, which scans the text from scratch.
+	 */
+	private static void assertTokens(CustomRecipientEditTextView.CustomCommaTokenizer tokenizer, CharSequence text) {
+		final CustomRecipientEditTextView.CustomCommaTokenizer expected = new CustomRecipientEditTextView.CustomCommaTokenizer();
+		assertEquals(expected.countTokens(text), tokenizer.countTokens(text));
+		for(int i = 0; i <= text.length(); i++) {
+			assertEquals("start at " + i, expected.findTokenStart(text, i), tokenizer.findTokenStart(text, i));
+			assertEquals("end at " + i, expected.findTokenEnd(text, i), tokenizer.findTokenEnd(text, i));
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package com.android.ex.chips;
+
+import android.view.ViewGroup;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class SingleCustomRecipientArrayAdapterTest {
+	@Test
+	public void fixedWidthIsPhotoSize() {
+		assertEquals(48, SingleCustomRecipientArrayAdapter.getPhotoSize(48, 0));
+		assertEquals(48, SingleCustomRecipientArrayAdapter.getPhotoSize(48, 96));
+	}
+
+
+	@Test
+	public void nonPositiveWidthIsNeverPhotoSize() {
+		assertEquals(96, SingleCustomRecipientArrayAdapter.getPhotoSize(ViewGroup.LayoutParams.WRAP_CONTENT, 96));
+		assertEquals(96, SingleCustomRecipientArrayAdapter.getPhotoSize(ViewGroup.LayoutParams.MATCH_PARENT, 96));
+		assertEquals(0, SingleCustomRecipientArrayAdapter.getPhotoSize(ViewGroup.LayoutParams.WRAP_CONTENT, 0));
+		assertEquals(0, SingleCustomRecipientArrayAdapter.getPhotoSize(0, 0));
+	}
+}